@@ -0,0 +1,156 @@
+// Copyright 2021 The Terasology Foundation
+// SPDX-License-Identifier: Apache-2.0
+
+package org.terasology.fallingblocks;
+
+import org.joml.Vector3i;
+import org.terasology.fallingblocks.node.BrickNode;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.Stack;
+
+/**
+ * A connected component within a BrickNode, stored as a bitmask of its blocks rather than with subchains.
+ */
+public class BrickChain extends Chain {
+    private long blocks;
+
+    public BrickChain(BrickNode node, long blocks) {
+        super(null, node);
+        this.blocks = blocks;
+    }
+
+    public long getBlocks() {
+        return blocks;
+    }
+
+    /**
+     * This doesn't update anything else, so the caller is responsible for making sure the touching set is still correct.
+     */
+    public void setBlocks(long blocks) {
+        this.blocks = blocks;
+        invalidateFaceMasks();
+    }
+
+    @Override
+    void deriveTouchingFromSubchains() {
+        // There are no subchains.
+    }
+
+    @Override
+    public void resetSupported() {
+        supported = false;
+    }
+
+    @Override
+    public void merge(Chain sibling) {
+        blocks |= ((BrickChain) sibling).blocks;
+        invalidateFaceMasks();
+        super.merge(sibling);
+    }
+
+    @Override
+    public boolean baseIsTouching(Chain sibling, int direction) {
+        if (sibling instanceof BrickChain) {
+            return BrickUtils.isTouching(blocks, ((BrickChain) sibling).blocks, direction);
+        } else if (sibling instanceof FullChain) {
+            return sibling.baseIsTouching(this, -direction);
+        } else {
+            // Only bricks and full nodes are this small.
+            return false;
+        }
+    }
+
+    @Override
+    public boolean updateTouching(Chain sibling, int direction) {
+        if (sibling instanceof FullChain) {
+            return sibling.updateTouching(this, -direction);
+        }
+        if (baseIsTouching(sibling, direction)) {
+            if (direction != 0) {
+                Chain.addTouching(this, sibling, direction);
+            }
+            return true;
+        } else {
+            return false;
+        }
+    }
+
+    /**
+     * The components of a brick are always kept up to date, so this can only need checking further up.
+     */
+    @Override
+    public Set<Chain> checkConnectivity(boolean sidesUnchanged) {
+        if (parent == null) {
+            Set<Chain> result = new HashSet<>();
+            result.add(this);
+            return result;
+        } else {
+            return parent.checkConnectivity(sidesUnchanged);
+        }
+    }
+
+    @Override
+    Set<Chain> checkConnectivityHere(boolean sidesUnchanged) {
+        Set<Chain> result = new HashSet<>();
+        result.add(this);
+        return result;
+    }
+
+    @Override
+    public boolean isTouching(int side) {
+        return BrickUtils.isOnSide(blocks, side);
+    }
+
+    @Override
+    void computeFaceMasks(short[] masks) {
+        for (int i = 0; i < masks.length; i++) {
+            masks[i] = (short) BrickUtils.faceMask(blocks, TreeUtils.DIRECTIONS[i]);
+        }
+    }
+
+    @Override
+    public boolean isTouchingAnySide() {
+        return BrickUtils.isOnAnySide(blocks);
+    }
+
+    @Override
+    public Set<Vector3i> getPositions(Vector3i pos) {
+        Set<Vector3i> result = new HashSet<>();
+        for (long remaining = blocks; remaining != 0; remaining &= remaining - 1) {
+            result.add(BrickUtils.position(Long.numberOfTrailingZeros(remaining)).add(pos));
+        }
+        return result;
+    }
+
+    public String toString() {
+        return "BCmp " + Long.toHexString(blocks);
+    }
+
+    @Override
+    public void validate(Stack<Integer> location) {
+        TreeUtils.assrt(active);
+        TreeUtils.assrt(node.getChains().contains(this));
+        if (parent != null) {
+            int found = 0;
+            for (Pair<Integer, Chain> subchain : parent.subchains()) {
+                if (subchain.b == this) {
+                    found++;
+                }
+            }
+            TreeUtils.assrt(found == 1);
+            TreeUtils.assrt(parent.node.size == node.size * 2);
+        }
+        TreeUtils.assrt(subchainId == -1);
+        TreeUtils.assrt(!supported);
+        validateFaceMasks();
+        TreeUtils.assrt(blocks != 0);
+        TreeUtils.assrt(BrickUtils.component(blocks, Long.lowestOneBit(blocks)) == blocks, "disconnected brick chain " + location);
+        for (Pair<Integer, Chain> t : touching()) {
+            TreeUtils.assrt(baseIsTouching(t.b, t.a), "direction " + t.a + " size " + node.size + " location " + location);
+            TreeUtils.assrt(t.b.isTouching(this, -t.a));
+            TreeUtils.assrt(node.size == t.b.node.size);
+        }
+    }
+}
@@ -0,0 +1,159 @@
+// Copyright 2021 The Terasology Foundation
+// SPDX-License-Identifier: Apache-2.0
+
+package org.terasology.fallingblocks;
+
+import org.joml.Vector3i;
+
+/**
+ * Bit operations on the contents of a 4x4x4 brick, stored as a long with one bit per block. The bits are in octree order,
+ * the same as within each word of ChunkData, so bit 4x+2y+z of each octant's 8 bits is the block at (x, y, z) in that octant.
+ * <p>
+ * Directions are used as in InternalNode (+x: 4, +y: 2, +z: 1 and their negatives). Conveniently, the absolute value of a
+ * direction is also the weight of the low bit of that coordinate in the index.
+ */
+public final class BrickUtils {
+    public static final int SIZE = 4;
+
+    // For each positive direction (indexed by its value), the blocks with that coordinate equal to 0, 1, 2 or 3.
+    private static final long[][] LAYERS = new long[5][4];
+    // All of the blocks on the outside of the brick.
+    private static final long ALL_FACES;
+    // For each direction (indexed as in TreeUtils.DIRECTIONS), the index of the block in each cell of that face, in the
+    // order used by face masks (see TreeUtils.faceCell).
+    private static final int[][] FACE_CELLS = new int[6][SIZE * SIZE];
+
+    static {
+        for (int x = 0; x < SIZE; x++) {
+            for (int y = 0; y < SIZE; y++) {
+                for (int z = 0; z < SIZE; z++) {
+                    long bit = 1L << index(x, y, z);
+                    LAYERS[4][x] |= bit;
+                    LAYERS[2][y] |= bit;
+                    LAYERS[1][z] |= bit;
+                }
+            }
+        }
+        long faces = 0;
+        for (int direction : TreeUtils.DIRECTIONS) {
+            faces |= face(direction);
+        }
+        ALL_FACES = faces;
+        for (int i = 0; i < 6; i++) {
+            int side = TreeUtils.DIRECTIONS[i];
+            for (int u = 0; u < SIZE; u++) {
+                for (int v = 0; v < SIZE; v++) {
+                    int[] coords = new int[5];
+                    coords[Math.abs(side)] = side > 0 ? SIZE - 1 : 0;
+                    coords[TreeUtils.faceAxisU(side)] = u;
+                    coords[TreeUtils.faceAxisV(side)] = v;
+                    FACE_CELLS[i][TreeUtils.faceCell(u, v)] = index(coords[4], coords[2], coords[1]);
+                }
+            }
+        }
+    }
+
+    private BrickUtils() {
+    }
+
+    /**
+     * The index of the bit for the block at the given position relative to the corner of the brick.
+     */
+    public static int index(int x, int y, int z) {
+        return ((x & 1) << 2) | ((y & 1) << 1) | (z & 1) | ((x & 2) << 4) | ((y & 2) << 3) | ((z & 2) << 2);
+    }
+
+    public static int index(Vector3i pos) {
+        return index(pos.x, pos.y, pos.z);
+    }
+
+    /**
+     * The position relative to the corner of the brick of the block with the given index.
+     */
+    public static Vector3i position(int index) {
+        return new Vector3i(((index >> 2) & 1) | ((index >> 4) & 2),
+                ((index >> 1) & 1) | ((index >> 3) & 2),
+                (index & 1) | ((index >> 2) & 2));
+    }
+
+    /**
+     * The blocks on the given side of the brick.
+     */
+    public static long face(int side) {
+        return side > 0 ? LAYERS[side][SIZE - 1] : LAYERS[-side][0];
+    }
+
+    public static boolean isOnSide(long blocks, int side) {
+        return (blocks & face(side)) != 0;
+    }
+
+    /**
+     * Which of the blocks on the given side of the brick are present, as a face mask (see Chain.getFaceMask).
+     */
+    public static int faceMask(long blocks, int side) {
+        int[] cells = FACE_CELLS[TreeUtils.directionIndex(side)];
+        int mask = 0;
+        for (int cell = 0; cell < cells.length; cell++) {
+            mask |= (int) ((blocks >>> cells[cell]) & 1) << cell;
+        }
+        return mask;
+    }
+
+    public static boolean isOnAnySide(long blocks) {
+        return (blocks & ALL_FACES) != 0;
+    }
+
+    /**
+     * Move all of the blocks one step in the given direction, discarding those that leave the brick.
+     */
+    public static long shift(long blocks, int direction) {
+        if (direction > 0) {
+            // 0 -> 1 and 2 -> 3 just set the low bit. 1 -> 2 clears the low bit and sets the high bit.
+            return ((blocks & (LAYERS[direction][0] | LAYERS[direction][2])) << direction)
+                    | ((blocks & LAYERS[direction][1]) << (7 * direction));
+        } else {
+            int d = -direction;
+            return ((blocks & (LAYERS[d][1] | LAYERS[d][3])) >>> d)
+                    | ((blocks & LAYERS[d][2]) >>> (7 * d));
+        }
+    }
+
+    /**
+     * The blocks, and all the blocks adjacent to them.
+     */
+    public static long dilate(long blocks) {
+        long result = blocks;
+        for (int direction : TreeUtils.DIRECTIONS) {
+            result |= shift(blocks, direction);
+        }
+        return result;
+    }
+
+    /**
+     * The connected component of `blocks` containing all of `seed`, which must be a subset of `blocks`.
+     */
+    public static long component(long blocks, long seed) {
+        long result = seed;
+        while (true) {
+            long next = dilate(result) & blocks;
+            if (next == result) {
+                return result;
+            }
+            result = next;
+        }
+    }
+
+    /**
+     * Do the two groups of blocks, in bricks adjacent in the given direction (or in the same brick if the direction is 0),
+     * touch?
+     */
+    public static boolean isTouching(long blocks1, long blocks2, int direction) {
+        if (direction == 0) {
+            return (dilate(blocks1) & blocks2) != 0;
+        } else if (direction > 0) {
+            return (((blocks1 & face(direction)) >>> (9 * direction)) & blocks2) != 0;
+        } else {
+            return (((blocks1 & face(direction)) << (-9 * direction)) & blocks2) != 0;
+        }
+    }
+}
@@ -0,0 +1,281 @@
+// Copyright 2021 The Terasology Foundation
+// SPDX-License-Identifier: Apache-2.0
+
+package org.terasology.fallingblocks;
+
+import org.joml.Vector3i;
+import org.terasology.fallingblocks.node.BrickNode;
+import org.terasology.fallingblocks.node.EmptyNode;
+import org.terasology.fallingblocks.node.InternalNode;
+import org.terasology.fallingblocks.node.Node;
+import org.terasology.fallingblocks.node.SolidNode;
+import org.terasology.fallingblocks.updates.AdditionUpdate;
+import org.terasology.fallingblocks.updates.LoadUpdate;
+import org.terasology.fallingblocks.updates.RemovalUpdate;
+
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.Queue;
+import java.util.Random;
+import java.util.Set;
+
+import static org.terasology.fallingblocks.BrickUtils.SIZE;
+
+/**
+ * Check the bit operations in BrickUtils, and the components BrickNode keeps as blocks are added and removed, against a simpler
+ * reimplementation with a boolean for each block of the brick, indexed by 16x+4y+z. They throw an exception if they fail.
+ */
+public final class BrickUtilsTest {
+    private static final int BLOCKS = SIZE * SIZE * SIZE;
+
+    private BrickUtilsTest() {
+    }
+
+    /**
+     * Check the packing of positions into bit indices, then each operation on random bricks of varying density.
+     */
+    public static void randomCheck(long seed, int bricks) {
+        Set<Integer> indices = new HashSet<>();
+        for (int i = 0; i < BLOCKS; i++) {
+            Vector3i pos = new Vector3i(i / 16, i / 4 % 4, i % 4);
+            int index = BrickUtils.index(pos);
+            TreeUtils.assrt(index >= 0 && index < BLOCKS && indices.add(index), "index " + pos);
+            TreeUtils.assrt(BrickUtils.position(index).equals(pos), "position " + index);
+        }
+
+        Random random = new Random(seed);
+        for (int n = 0; n < bricks; n++) {
+            long blocks = randomBlocks(random);
+            long other = randomBlocks(random);
+            boolean[] reference = toReference(blocks);
+            boolean anySide = false;
+            for (int direction : TreeUtils.DIRECTIONS) {
+                boolean[] face = new boolean[BLOCKS];
+                boolean onSide = false;
+                for (int i = 0; i < BLOCKS; i++) {
+                    face[i] = isOnFace(i, direction);
+                    onSide |= face[i] && reference[i];
+                }
+                anySide |= onSide;
+                TreeUtils.assrt(BrickUtils.face(direction) == fromReference(face), "face " + direction);
+                TreeUtils.assrt(BrickUtils.isOnSide(blocks, direction) == onSide, "isOnSide " + direction);
+                TreeUtils.assrt(BrickUtils.shift(blocks, direction) == fromReference(shift(reference, direction)),
+                        "shift " + direction);
+                TreeUtils.assrt(BrickUtils.isTouching(blocks, other, direction) == isTouching(reference, toReference(other),
+                        direction), "isTouching " + direction);
+            }
+            TreeUtils.assrt(BrickUtils.isOnAnySide(blocks) == anySide, "isOnAnySide");
+            boolean[] dilated = reference.clone();
+            for (int direction : TreeUtils.DIRECTIONS) {
+                boolean[] shifted = shift(reference, direction);
+                for (int i = 0; i < BLOCKS; i++) {
+                    dilated[i] |= shifted[i];
+                }
+            }
+            TreeUtils.assrt(BrickUtils.dilate(blocks) == fromReference(dilated), "dilate");
+            TreeUtils.assrt(BrickUtils.isTouching(blocks, other, 0) == isTouching(reference, toReference(other), 0),
+                    "isTouching 0");
+            long remaining = blocks;
+            while (remaining != 0) {
+                long seedBit = Long.lowestOneBit(remaining);
+                long component = BrickUtils.component(blocks, seedBit);
+                TreeUtils.assrt(component == fromReference(component(reference, Long.numberOfTrailingZeros(seedBit))),
+                        "component");
+                remaining &= ~component;
+            }
+        }
+    }
+
+    /**
+     * Load a single slice with random blocks and make random changes within a small part of it, checking after each one that
+     * the chains of each brick there are exactly the connected components of its blocks.
+     */
+    public static void randomNodeCheck(long seed, int steps) {
+        Random random = new Random(seed);
+        int n = Tree.CHUNK_NODE_SIZE;
+        boolean[][][] solid = new boolean[n][n][n];
+        ChunkData data = new ChunkData();
+        for (int x = 0; x < n; x++) {
+            for (int y = 0; y < n; y++) {
+                for (int z = 0; z < n; z++) {
+                    if (random.nextInt(3) == 0) {
+                        solid[x][y][z] = true;
+                        data.set(x, y, z);
+                    }
+                }
+            }
+        }
+        Tree tree = new Tree();
+        new LoadUpdate(data.compact(), new Vector3i(0, 0, 0)).execute(tree);
+        // The changes are all in a cube of 8 bricks, so that the same bricks are split and joined up again many times.
+        int area = 2 * SIZE;
+        for (int step = 0; step < steps; step++) {
+            int x = random.nextInt(area);
+            int y = random.nextInt(area);
+            int z = random.nextInt(area);
+            Vector3i pos = new Vector3i(x, y, z);
+            if (solid[x][y][z]) {
+                new RemovalUpdate(pos).execute(tree);
+            } else {
+                new AdditionUpdate(pos).execute(tree);
+            }
+            solid[x][y][z] = !solid[x][y][z];
+            for (int bx = 0; bx < area; bx += SIZE) {
+                for (int by = 0; by < area; by += SIZE) {
+                    for (int bz = 0; bz < area; bz += SIZE) {
+                        checkBrick(tree, solid, new Vector3i(bx, by, bz));
+                    }
+                }
+            }
+        }
+    }
+
+    private static void checkBrick(Tree tree, boolean[][][] solid, Vector3i brickPos) {
+        boolean[] reference = new boolean[BLOCKS];
+        for (int i = 0; i < BLOCKS; i++) {
+            reference[i] = solid[brickPos.x + i / 16][brickPos.y + i / 4 % 4][brickPos.z + i % 4];
+        }
+        Node node = tree.rootNode;
+        Vector3i pos = new Vector3i(brickPos);
+        while (node instanceof InternalNode) {
+            int octant = TreeUtils.octantOfPosition(pos, node.size);
+            pos = TreeUtils.modVector(pos, node.size / 2);
+            node = ((InternalNode) node).children[octant];
+        }
+        long blocks = fromReference(reference);
+        if (node instanceof BrickNode) {
+            node.validate();
+            TreeUtils.assrt(node.size == SIZE && ((BrickNode) node).getBlocks() == blocks, "blocks at " + brickPos);
+            Set<Long> expected = new HashSet<>();
+            long remaining = blocks;
+            while (remaining != 0) {
+                long component = fromReference(component(reference, Long.numberOfTrailingZeros(remaining)));
+                expected.add(component);
+                remaining &= ~component;
+            }
+            Set<Long> actual = new HashSet<>();
+            for (Chain chain : node.getChains()) {
+                actual.add(((BrickChain) chain).getBlocks());
+            }
+            TreeUtils.assrt(actual.equals(expected), "components at " + brickPos);
+        } else if (node instanceof SolidNode) {
+            TreeUtils.assrt(blocks == -1L, "solid at " + brickPos);
+        } else {
+            TreeUtils.assrt(node instanceof EmptyNode && blocks == 0, "empty at " + brickPos);
+        }
+    }
+
+    private static long randomBlocks(Random random) {
+        // Vary the density, so that there are both many small components and a few large ones.
+        int density = 1 + random.nextInt(7);
+        long blocks = 0;
+        for (int i = 0; i < BLOCKS; i++) {
+            if (random.nextInt(8) < density) {
+                blocks |= 1L << i;
+            }
+        }
+        return blocks;
+    }
+
+    private static boolean[] toReference(long blocks) {
+        boolean[] result = new boolean[BLOCKS];
+        for (int i = 0; i < BLOCKS; i++) {
+            result[i] = (blocks & (1L << BrickUtils.index(i / 16, i / 4 % 4, i % 4))) != 0;
+        }
+        return result;
+    }
+
+    private static long fromReference(boolean[] reference) {
+        long result = 0;
+        for (int i = 0; i < BLOCKS; i++) {
+            if (reference[i]) {
+                result |= 1L << BrickUtils.index(i / 16, i / 4 % 4, i % 4);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The coordinates of the block with the given reference index, indexed by the absolute value of a direction.
+     */
+    private static int[] coords(int i) {
+        int[] result = new int[5];
+        result[4] = i / 16;
+        result[2] = i / 4 % 4;
+        result[1] = i % 4;
+        return result;
+    }
+
+    private static int referenceIndex(int[] coords) {
+        return coords[4] * 16 + coords[2] * 4 + coords[1];
+    }
+
+    private static boolean isOnFace(int i, int side) {
+        return coords(i)[Math.abs(side)] == (side > 0 ? SIZE - 1 : 0);
+    }
+
+    private static boolean[] shift(boolean[] reference, int direction) {
+        boolean[] result = new boolean[BLOCKS];
+        for (int i = 0; i < BLOCKS; i++) {
+            int[] c = coords(i);
+            c[Math.abs(direction)] += Integer.signum(direction);
+            if (reference[i] && c[Math.abs(direction)] >= 0 && c[Math.abs(direction)] < SIZE) {
+                result[referenceIndex(c)] = true;
+            }
+        }
+        return result;
+    }
+
+    private static boolean isTouching(boolean[] reference1, boolean[] reference2, int direction) {
+        for (int i = 0; i < BLOCKS; i++) {
+            if (!reference1[i]) {
+                continue;
+            }
+            if (direction == 0) {
+                if (reference2[i]) {
+                    return true;
+                }
+                for (int d : TreeUtils.DIRECTIONS) {
+                    int[] c = coords(i);
+                    c[Math.abs(d)] += Integer.signum(d);
+                    if (c[Math.abs(d)] >= 0 && c[Math.abs(d)] < SIZE && reference2[referenceIndex(c)]) {
+                        return true;
+                    }
+                }
+            } else if (isOnFace(i, direction)) {
+                // The block next to it in the other brick is on the opposite face.
+                int[] c = coords(i);
+                c[Math.abs(direction)] = SIZE - 1 - c[Math.abs(direction)];
+                if (reference2[referenceIndex(c)]) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean[] component(boolean[] reference, int seedIndex) {
+        boolean[] result = new boolean[BLOCKS];
+        Vector3i seedPos = BrickUtils.position(seedIndex);
+        int start = seedPos.x * 16 + seedPos.y * 4 + seedPos.z;
+        Queue<Integer> queue = new ArrayDeque<>();
+        result[start] = true;
+        queue.add(start);
+        while (!queue.isEmpty()) {
+            int i = queue.remove();
+            for (int d : TreeUtils.DIRECTIONS) {
+                int[] c = coords(i);
+                c[Math.abs(d)] += Integer.signum(d);
+                if (c[Math.abs(d)] < 0 || c[Math.abs(d)] >= SIZE) {
+                    continue;
+                }
+                int j = referenceIndex(c);
+                if (reference[j] && !result[j]) {
+                    result[j] = true;
+                    queue.add(j);
+                }
+            }
+        }
+        return result;
+    }
+}
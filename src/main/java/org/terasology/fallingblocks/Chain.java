@@ -6,32 +6,48 @@ package org.terasology.fallingblocks;
 import org.joml.Vector3i;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.terasology.fallingblocks.arrays.IntPairSetHeap;
+import org.terasology.fallingblocks.arrays.UnionFind;
 import org.terasology.fallingblocks.node.InternalNode;
 import org.terasology.fallingblocks.node.Node;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
 import java.util.Set;
 import java.util.Stack;
 
 /**
  * A connected component of solid blocks within an octree node.
  */
-public class Chain {
+public class Chain implements IntPairSetHeap.Owner {
     private static final Logger logger = LoggerFactory.getLogger(Chain.class);
 
-    public final int subchainId;
-    public final int touchingId;
+    public int subchainId;
+    // For each of the directions in TreeUtils.DIRECTIONS, the key of the set of chains touching this on that side, or -1 if there
+    // aren't any. This is null until the first touching chain is added.
+    private int[] touchingIds;
     public Chain parent;
     public final Node node;
     public final Tree tree;
     public boolean supported; //Does this chain contain any unloaded Chains (which are assumed to be supported)?
     boolean active = true; //Is this chain currently part of the overall octree structure?
+    private int scratchIndex; // The position of this chain in its parent's subchains, while the parent's connectivity is being checked.
+    // Cached results of getFaceMask for each direction in TreeUtils.DIRECTIONS, only valid if faceMasksDirty is false. If a chain's
+    // masks are dirty, so are all of its ancestors'.
+    private final short[] faceMasks = new short[6];
+    private boolean faceMasksDirty = true;
 
     public Chain(int childIndex, Chain childChain, InternalNode node) {
         this.tree = node.tree;
-        subchainId = tree.subchains.allocate();
-        touchingId = tree.touching.allocate();
+        subchainId = tree.subchains.allocate(this);
         addSubchain(childIndex, childChain);
         deriveTouchingFromSubchains();
         this.node = node;
@@ -40,9 +56,8 @@ public class Chain {
 
     public Chain(Set<Pair<Integer, Chain>> subchains, Node node) {
         this.tree = node.tree;
-        touchingId = tree.touching.allocate();
         if (subchains != null) {
-            subchainId = tree.subchains.allocate();
+            subchainId = tree.subchains.allocate(this);
             for (Pair<Integer, Chain> subchain : subchains) {
                 addSubchain(subchain.a, subchain.b);
             }
@@ -59,22 +74,26 @@ public class Chain {
      * touching a FullChain, which doesn't have subchains.
      */
     void deriveTouchingFromSubchains() {
-        for (Pair<Integer, Chain> subchain : subchains()) {
-            int octant = subchain.a;
-            Chain child = subchain.b;
-            for (Pair<Integer, Chain> childTouching : child.touching()) {
-                int side = childTouching.a;
-                Chain newTouching = childTouching.b.parent;
+        IntPairSetHeap<Chain>.Cursor subchain = subchainCursor();
+        while (subchain.hasNext()) {
+            subchain.next();
+            int octant = subchain.getA();
+            TouchingCursor childTouching = subchain.getB().touchingCursor();
+            while (childTouching.hasNext()) {
+                childTouching.next();
+                int side = childTouching.getA();
                 if (TreeUtils.isOctantOnSide(octant, side)) {
-                    addTouching(this, newTouching, side);
+                    addTouching(this, childTouching.getB().parent, side);
                 }
             }
         }
     }
 
     public void resetSupported() {
-        for (Pair<Integer, Chain> sc : subchains()) {
-            if (sc.b.supported) {
+        IntPairSetHeap<Chain>.Cursor sc = subchainCursor();
+        while (sc.hasNext()) {
+            sc.next();
+            if (sc.getB().supported) {
                 supported = true;
                 return;
             }
@@ -88,14 +107,18 @@ public class Chain {
         TreeUtils.assrt(sibling.parent == null || sibling.parent.isActive());
         TreeUtils.assrt(sibling != this);
         TreeUtils.assrt(sibling.node == node);
-        for (Pair<Integer, Chain> t : sibling.touching()) {
-            t.b.removeTouching(sibling);
-            if (!isTouching(t.b, t.a)) {
-                addTouching(this, t.b, t.a);
+        TouchingCursor t = sibling.touchingCursor();
+        while (t.hasNext()) {
+            t.next();
+            t.getB().removeTouching(sibling, -t.getA());
+            if (!isTouching(t.getB(), t.getA())) {
+                addTouching(this, t.getB(), t.getA());
             }
         }
-        for (Pair<Integer, Chain> sc : sibling.subchains()) {
-            addSubchain(sc.a, sc.b);
+        IntPairSetHeap<Chain>.Cursor sc = sibling.subchainCursor();
+        while (sc.hasNext()) {
+            sc.next();
+            addSubchain(sc.getA(), sc.getB());
         }
         if (sibling.parent != null) {
             int octant = sibling.parent.removeSubchain(sibling);
@@ -116,13 +139,17 @@ public class Chain {
     }
 
     public void replaceWith(Chain replacement) {
-        for (Pair<Integer, Chain> sc : subchains()) {
-            replacement.addSubchain(sc.a, sc.b);
-        }
-        for (Pair<Integer, Chain> t : touching()) {
-            t.b.removeTouching(this);
-            if (replacement.baseIsTouching(t.b, t.a)) {
-                addTouching(replacement, t.b, t.a);
+        IntPairSetHeap<Chain>.Cursor sc = subchainCursor();
+        while (sc.hasNext()) {
+            sc.next();
+            replacement.addSubchain(sc.getA(), sc.getB());
+        }
+        TouchingCursor t = touchingCursor();
+        while (t.hasNext()) {
+            t.next();
+            t.getB().removeTouching(this, -t.getA());
+            if (replacement.baseIsTouching(t.getB(), t.getA())) {
+                addTouching(replacement, t.getB(), t.getA());
             }
         }
         if (parent != null) {
@@ -130,6 +157,7 @@ public class Chain {
                 if (parent.getSubchain(i) == this) {
                     tree.subchains.setB(parent.subchainId, i, replacement);
                     replacement.parent = parent;
+                    parent.invalidateFaceMasks();
                 }
             }
             if (replacement.supported != supported) {
@@ -150,13 +178,47 @@ public class Chain {
         if (sibling instanceof FullChain) {
             return sibling.baseIsTouching(this, -direction);
         }
-        for (Pair<Integer, Chain> subchain1 : subchains()) {
-            for (Pair<Integer, Chain> subchain2 : sibling.subchains()) {
-                int adjacency = TreeUtils.isAdjacent(subchain1.a, subchain2.a, direction);
+        if (direction != 0 && (getFaceMask(direction) & sibling.getFaceMask(-direction)) == 0) {
+            return false;
+        }
+        IntPairSetHeap<Chain>.Cursor subchain1 = subchainCursor();
+        while (subchain1.hasNext()) {
+            subchain1.next();
+            IntPairSetHeap<Chain>.Cursor subchain2 = sibling.subchainCursor();
+            while (subchain2.hasNext()) {
+                subchain2.next();
+                int adjacency = TreeUtils.isAdjacent(subchain1.getA(), subchain2.getA(), direction);
                 if (adjacency == 0) {
                     continue;
                 }
-                if (subchain1.b.isTouching(subchain2.b, adjacency)) {
+                if (subchain1.getB().isTouching(subchain2.getB(), adjacency)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Like baseIsTouching, but without using the cached touching sets of the subchains either, all the way down. This works even
+     * if the chains are in different trees, as long as their nodes are the same size and adjacent.
+     */
+    public boolean deepIsTouching(Chain other, int direction) {
+        if (subchainId == -1 || other.subchainId == -1) {
+            // Full chains and bricks don't need any cached information.
+            return baseIsTouching(other, direction);
+        }
+        if ((getFaceMask(direction) & other.getFaceMask(-direction)) == 0) {
+            return false;
+        }
+        IntPairSetHeap<Chain>.Cursor subchain1 = subchainCursor();
+        while (subchain1.hasNext()) {
+            subchain1.next();
+            IntPairSetHeap<Chain>.Cursor subchain2 = other.subchainCursor();
+            while (subchain2.hasNext()) {
+                subchain2.next();
+                int adjacency = TreeUtils.isAdjacent(subchain1.getA(), subchain2.getA(), direction);
+                if (adjacency != 0 && subchain1.getB().deepIsTouching(subchain2.getB(), adjacency)) {
                     return true;
                 }
             }
@@ -168,8 +230,10 @@ public class Chain {
         if (direction == 0) {
             return baseIsTouching(sibling, direction);
         } else {
-            for (Pair<Integer, Chain> t : touching()) {
-                if (t.b == sibling) {
+            IntPairSetHeap<Chain>.Cursor t = touchingCursor(direction);
+            while (t.hasNext()) {
+                t.next();
+                if (t.getB() == sibling) {
                     return true;
                 }
             }
@@ -181,12 +245,19 @@ public class Chain {
         if (sibling instanceof FullChain) {
             return sibling.updateTouching(this, -direction);
         }
+        if (direction != 0 && (getFaceMask(direction) & sibling.getFaceMask(-direction)) == 0) {
+            return false;
+        }
         boolean result = false;
-        for (Pair<Integer, Chain> subchain1 : subchains()) {
-            for (Pair<Integer, Chain> subchain2 : sibling.subchains()) {
-                int adjacency = TreeUtils.isAdjacent(subchain1.a, subchain2.a, direction);
-
-                if (adjacency != 0 && subchain1.b.updateTouching(subchain2.b, adjacency)) {
+        IntPairSetHeap<Chain>.Cursor subchain1 = subchainCursor();
+        while (subchain1.hasNext()) {
+            subchain1.next();
+            IntPairSetHeap<Chain>.Cursor subchain2 = sibling.subchainCursor();
+            while (subchain2.hasNext()) {
+                subchain2.next();
+                int adjacency = TreeUtils.isAdjacent(subchain1.getA(), subchain2.getA(), direction);
+
+                if (adjacency != 0 && subchain1.getB().updateTouching(subchain2.getB(), adjacency)) {
                     result = true;
                     // The test has side-effects, so the loops must continue.
                 }
@@ -203,35 +274,98 @@ public class Chain {
      * recursively splitting the parent as well if necessary.
      * <p>
      * Returns the top-level chains (i.e. most distant ancestor) resulting from this split.
+     * <p>
+     * This is needed even when the change is nowhere near the unloaded chains that make this chain supported, as it can still cut
+     * off an unsupported piece, and only the split finds that.
      */
     public Set<Chain> checkConnectivity() {
+        return checkConnectivity(false);
+    }
+
+    /**
+     * @param sidesUnchanged Whether the change being checked for can't have changed which sides of their nodes any of the chains
+     *                       reach (see getSides). Unless it is, all the ancestors are checked, as whether they touch the FullChains
+     *                       next to them depends only on that, not on the touching relations of their subchains.
+     */
+    public Set<Chain> checkConnectivity(boolean sidesUnchanged) {
+        Set<Chain> result = checkConnectivityHere(sidesUnchanged);
+        if (result == null) {
+            // Nothing visible from outside this chain has changed, so the ancestors are unaffected.
+            result = new HashSet<>();
+            result.add(getTopAncestor());
+            return result;
+        }
+        if (parent == null) {
+            return result;
+        } else {
+            return parent.checkConnectivity(sidesUnchanged);
+        }
+    }
+
+    /**
+     * Like checkConnectivity for several chains at once, checking each ancestor only once, after all of its descendants that
+     * need checking.
+     */
+    public static Set<Chain> checkConnectivity(Collection<Chain> chains) {
+        PriorityQueue<Chain> queue = new PriorityQueue<>(Comparator.comparingInt(chain -> chain.node.size));
+        Set<Chain> queued = new HashSet<>(chains);
+        queue.addAll(queued);
         Set<Chain> result = new HashSet<>();
-        Set<Pair<Integer, Chain>> unprocessedSubchains = new HashSet<>();
-        for (Pair<Integer, Chain> sc : subchains()) {
-            unprocessedSubchains.add(sc);
-        }
-        Stack<Pair<Integer, Chain>> edge = new Stack<>();
-        while (!unprocessedSubchains.isEmpty()) {
-            Set<Pair<Integer, Chain>> connectedComponent = new HashSet<>();
-            Pair<Integer, Chain> start = unprocessedSubchains.iterator().next();
-            unprocessedSubchains.remove(start);
-            edge.push(start);
-            while (!edge.empty()) {
-                Pair<Integer, Chain> current = edge.pop();
-                connectedComponent.add(current);
-                Iterator<Pair<Integer, Chain>> others = unprocessedSubchains.iterator();
-                while (others.hasNext()) {
-                    Pair<Integer, Chain> other = others.next();
-                    int direction = TreeUtils.isAdjacent(current.a, other.a);
-                    if (direction != 0 && current.b.isTouching(other.b, direction)) {
-                        edge.push(other);
-                        others.remove();
-                    }
+        while (!queue.isEmpty()) {
+            Chain chain = queue.remove();
+            Set<Chain> fragments = chain.checkConnectivityHere(false);
+            if (fragments == null) {
+                result.add(chain.getTopAncestor());
+            } else if (chain.parent == null) {
+                result.addAll(fragments);
+            } else if (queued.add(chain.parent)) {
+                queue.add(chain.parent);
+            }
+        }
+        // Some of the ancestors added early on may have been split up since.
+        result.removeIf(chain -> !chain.isActive());
+        return result;
+    }
+
+    /**
+     * The part of checkConnectivity for just this chain, without going on to the ancestors.
+     *
+     * @return The chains this has split into (or just this), or null if the ancestors can't have been affected
+     */
+    Set<Chain> checkConnectivityHere(boolean sidesUnchanged) {
+        Set<Chain> result = new HashSet<>();
+        int n = numSubchains();
+        Chain[] members = new Chain[n];
+        int[] octants = new int[n];
+        int i = 0;
+        IntPairSetHeap<Chain>.Cursor sc = subchainCursor();
+        while (sc.hasNext()) {
+            sc.next();
+            members[i] = sc.getB();
+            octants[i] = sc.getA();
+            members[i].scratchIndex = i;
+            i++;
+        }
+        // Any two subchains that are touching each other are necessarily adjacent, so the touching sets are all that's needed.
+        UnionFind components = tree.unionFind;
+        components.reset(n);
+        for (i = 0; i < n; i++) {
+            TouchingCursor t = members[i].touchingCursor();
+            while (t.hasNext()) {
+                t.next();
+                if (t.getB().parent == this) {
+                    components.union(i, t.getB().scratchIndex);
                 }
             }
-            if (result.isEmpty() && unprocessedSubchains.isEmpty()) {
-                result.add(this);
-            } else {
+        }
+        if (components.count() == 1) {
+            result.add(this);
+        } else if (n > 0) {
+            Map<Integer, Set<Pair<Integer, Chain>>> connectedComponents = new HashMap<>();
+            for (i = 0; i < n; i++) {
+                connectedComponents.computeIfAbsent(components.find(i), k -> new HashSet<>()).add(new Pair<>(octants[i], members[i]));
+            }
+            for (Set<Pair<Integer, Chain>> connectedComponent : connectedComponents.values()) {
                 Chain fragment = new Chain(connectedComponent, node);
                 result.add(fragment);
                 for (Pair<Integer, Chain> touchingThis : touching()) {
@@ -252,42 +386,97 @@ public class Chain {
             inactivate(false);
             node.getChains().addAll(result);
         } else {
+            boolean wasSupported = supported;
             resetSupported();
-            int i = 0;
-            while (i < numTouching()) {
-                Chain touching = getTouching(i);
-                if (!baseIsTouching(touching, getTouchingDirection(i))) {
-                    removeTouching(touching);
-                    touching.removeTouching(this);
-                } else {
-                    i++;
-                }
+            if (!pruneTouching() && supported == wasSupported && sidesUnchanged) {
+                return null;
             }
         }
-        if (parent == null) {
-            return result;
-        } else {
-            return parent.checkConnectivity();
+        return result;
+    }
+
+    public Chain getTopAncestor() {
+        Chain result = this;
+        while (result.parent != null) {
+            result = result.parent;
         }
+        return result;
     }
 
 
     public boolean isTouching(int side) {
-        for (Pair<Integer, Chain> subchain : subchains()) {
-            if (TreeUtils.isOctantOnSide(subchain.a, side) && subchain.b.isTouching(side)) {
+        return getFaceMask(side) != 0;
+    }
+
+    /**
+     * Which sides of its node this chain reaches, with bit i set for the side TreeUtils.DIRECTIONS[i].
+     */
+    public int getSides() {
+        int sides = 0;
+        for (int i = 0; i < TreeUtils.DIRECTIONS.length; i++) {
+            if (isTouching(TreeUtils.DIRECTIONS[i])) {
+                sides |= 1 << i;
+            }
+        }
+        return sides;
+    }
+
+    public boolean isTouchingAnySide() {
+        for (int side : TreeUtils.DIRECTIONS) {
+            if (getFaceMask(side) != 0) {
                 return true;
             }
         }
         return false;
     }
 
-    public boolean isTouchingAnySide() {
-        return isTouching(4)
-                || isTouching(2)
-                || isTouching(1)
-                || isTouching(-1)
-                || isTouching(-2)
-                || isTouching(-4);
+    /**
+     * Which cells of a 4x4 grid over the given face of this chain's node contain any of the chain's blocks, with bit
+     * TreeUtils.faceCell(u, v) set for each occupied cell. Two chains can only be touching if their masks on the adjoining faces
+     * overlap, so this rules most pairs out without recursing into the subchains.
+     */
+    public int getFaceMask(int side) {
+        if (faceMasksDirty) {
+            computeFaceMasks(faceMasks);
+            faceMasksDirty = false;
+        }
+        return faceMasks[TreeUtils.directionIndex(side)] & 0xFFFF;
+    }
+
+    /**
+     * Work out the face masks from scratch, indexed as TreeUtils.DIRECTIONS.
+     */
+    void computeFaceMasks(short[] masks) {
+        Arrays.fill(masks, (short) 0);
+        IntPairSetHeap<Chain>.Cursor subchain = subchainCursor();
+        while (subchain.hasNext()) {
+            subchain.next();
+            for (int i = 0; i < masks.length; i++) {
+                int side = TreeUtils.DIRECTIONS[i];
+                if (TreeUtils.isOctantOnSide(subchain.getA(), side)) {
+                    masks[i] |= TreeUtils.faceMaskToParent(subchain.getB().getFaceMask(side), subchain.getA(), side);
+                }
+            }
+        }
+    }
+
+    /**
+     * Record that the blocks in this chain have changed, so its face masks and those of its ancestors need recomputing.
+     */
+    void invalidateFaceMasks() {
+        for (Chain chain = this; chain != null && !chain.faceMasksDirty; chain = chain.parent) {
+            chain.faceMasksDirty = true;
+        }
+    }
+
+    void validateFaceMasks() {
+        if (!faceMasksDirty) {
+            short[] expected = new short[faceMasks.length];
+            computeFaceMasks(expected);
+            TreeUtils.assrt(Arrays.equals(faceMasks, expected), "stale face masks, size " + node.size);
+        } else {
+            TreeUtils.assrt(parent == null || parent.faceMasksDirty, "clean parent of dirty face masks, size " + node.size);
+        }
     }
 
     public Set<Vector3i> getPositions(Vector3i pos) {
@@ -306,12 +495,16 @@ public class Chain {
 
     public void inactivate(boolean removeAncestors) {
         node.getChains().remove(this);
-        for (Pair<Integer, Chain> t : touching()) {
-            t.b.removeTouching(this);
-        }
-        for (Pair<Integer, Chain> sc : subchains()) {
-            if (sc.b.parent == this && sc.b.isActive()) {
-                sc.b.inactivate(false);
+        TouchingCursor t = touchingCursor();
+        while (t.hasNext()) {
+            t.next();
+            t.getB().removeTouching(this, -t.getA());
+        }
+        IntPairSetHeap<Chain>.Cursor sc = subchainCursor();
+        while (sc.hasNext()) {
+            sc.next();
+            if (sc.getB().parent == this && sc.getB().isActive()) {
+                sc.getB().inactivate(false);
             }
         }
         if (removeAncestors && parent != null) {
@@ -326,7 +519,29 @@ public class Chain {
 
     private void releaseId() {
         tree.subchains.remove(subchainId);
-        tree.touching.remove(touchingId);
+        if (touchingIds != null) {
+            for (int touchingId : touchingIds) {
+                tree.touching.remove(touchingId);
+            }
+            touchingIds = null;
+        }
+    }
+
+    @Override
+    public void moved(IntPairSetHeap<?> heap, int oldKey, int newKey) {
+        if (heap == tree.subchains && subchainId == oldKey) {
+            subchainId = newKey;
+        } else {
+            if (heap == tree.touching && touchingIds != null) {
+                for (int i = 0; i < touchingIds.length; i++) {
+                    if (touchingIds[i] == oldKey) {
+                        touchingIds[i] = newKey;
+                        return;
+                    }
+                }
+            }
+            throw new IllegalStateException("Chain notified about a key it doesn't own.");
+        }
     }
 
     public boolean isActive() {
@@ -337,6 +552,10 @@ public class Chain {
         return tree.subchains.iterator(subchainId);
     }
 
+    public IntPairSetHeap<Chain>.Cursor subchainCursor() {
+        return tree.subchains.cursor(subchainId);
+    }
+
     public int numSubchains() {
         if (subchainId == -1) {
             return 0;
@@ -361,6 +580,7 @@ public class Chain {
         int size = tree.subchains.expand(subchainId, 1);
         tree.subchains.set(subchainId, size - 1, octant, child);
         child.parent = this;
+        invalidateFaceMasks();
     }
 
     /**
@@ -368,10 +588,13 @@ public class Chain {
      */
     public int removeSubchain(Chain child) {
         int i = 0;
-        for (Pair<Integer, Chain> t : subchains()) {
-            if (t.b == child) {
+        IntPairSetHeap<Chain>.Cursor sc = subchainCursor();
+        while (sc.hasNext()) {
+            sc.next();
+            if (sc.getB() == child) {
                 tree.subchains.remove(subchainId, i);
-                return t.a;
+                invalidateFaceMasks();
+                return sc.getA();
             } else {
                 i++;
             }
@@ -379,20 +602,44 @@ public class Chain {
         return -1;
     }
 
+    /**
+     * All the chains touching this one, with the directions to them. This is a copy, so it's unaffected by changes to the touching sets.
+     */
     public Iterable<Pair<Integer, Chain>> touching() {
-        return tree.touching.iterator(touchingId);
+        List<Pair<Integer, Chain>> result = new ArrayList<>();
+        TouchingCursor t = touchingCursor();
+        while (t.hasNext()) {
+            t.next();
+            result.add(new Pair<>(t.getA(), t.getB()));
+        }
+        return result;
     }
 
-    public int numTouching() {
-        return tree.touching.getSize(touchingId);
+    public TouchingCursor touchingCursor() {
+        return this.new TouchingCursor();
     }
 
-    public int getTouchingDirection(int i) {
-        return tree.touching.getA(touchingId, i);
+    /**
+     * The chains touching this one on the given side.
+     */
+    public IntPairSetHeap<Chain>.Cursor touchingCursor(int direction) {
+        return tree.touching.cursor(getTouchingId(TreeUtils.directionIndex(direction)));
+    }
+
+    public int numTouching() {
+        int result = 0;
+        if (touchingIds != null) {
+            for (int touchingId : touchingIds) {
+                if (touchingId != -1) {
+                    result += tree.touching.getSize(touchingId);
+                }
+            }
+        }
+        return result;
     }
 
-    public Chain getTouching(int i) {
-        return tree.touching.getB(touchingId, i);
+    private int getTouchingId(int directionIndex) {
+        return touchingIds == null ? -1 : touchingIds[directionIndex];
     }
 
     public static void addTouching(Chain a, Chain b, int direction) {
@@ -401,20 +648,127 @@ public class Chain {
         if (a.isTouching(b, direction)) {
             return;
         }
-        a.tree.touching.set(a.touchingId, a.tree.touching.expand(a.touchingId, 1) - 1, direction, b);
-        b.tree.touching.set(b.touchingId, b.tree.touching.expand(b.touchingId, 1) - 1, -direction, a);
+        a.appendTouching(b, direction);
+        b.appendTouching(a, -direction);
+    }
+
+    private void appendTouching(Chain touching, int direction) {
+        int directionIndex = TreeUtils.directionIndex(direction);
+        if (touchingIds == null) {
+            touchingIds = new int[]{-1, -1, -1, -1, -1, -1};
+        }
+        if (touchingIds[directionIndex] == -1) {
+            touchingIds[directionIndex] = tree.touching.allocate(this);
+        }
+        int touchingId = touchingIds[directionIndex];
+        tree.touching.set(touchingId, tree.touching.expand(touchingId, 1) - 1, direction, touching);
     }
 
     public void removeTouching(Chain touching) {
-        int i = 0;
-        for (Pair<Integer, Chain> t : touching()) {
-            if (t.b == touching) {
-                tree.touching.remove(touchingId, i);
+        for (int direction : TreeUtils.DIRECTIONS) {
+            if (removeTouching(touching, direction)) {
                 return;
+            }
+        }
+    }
+
+    /**
+     * Remove the record of touching the given chain on the given side, without affecting the other chain.
+     *
+     * @return Whether it was there to remove
+     */
+    public boolean removeTouching(Chain touching, int direction) {
+        int directionIndex = TreeUtils.directionIndex(direction);
+        int i = 0;
+        IntPairSetHeap<Chain>.Cursor t = tree.touching.cursor(getTouchingId(directionIndex));
+        while (t.hasNext()) {
+            t.next();
+            if (t.getB() == touching) {
+                removeTouchingAt(directionIndex, i);
+                return true;
             } else {
                 i++;
             }
         }
+        return false;
+    }
+
+    private void removeTouchingAt(int directionIndex, int i) {
+        int touchingId = touchingIds[directionIndex];
+        if (tree.touching.getSize(touchingId) == 1) {
+            tree.touching.remove(touchingId);
+            touchingIds[directionIndex] = -1;
+        } else {
+            tree.touching.remove(touchingId, i);
+        }
+    }
+
+    /**
+     * Remove any touching relations (in both directions) that no longer actually hold.
+     *
+     * @return Whether any were removed
+     */
+    public boolean pruneTouching() {
+        if (touchingIds == null) {
+            return false;
+        }
+        boolean removed = false;
+        for (int directionIndex = 0; directionIndex < touchingIds.length; directionIndex++) {
+            int touchingId = touchingIds[directionIndex];
+            if (touchingId == -1) {
+                continue;
+            }
+            int direction = TreeUtils.DIRECTIONS[directionIndex];
+            boolean removedHere = tree.touching.removeIf(touchingId, (d, touching) -> {
+                if (baseIsTouching(touching, direction)) {
+                    return false;
+                }
+                touching.removeTouching(this, -direction);
+                return true;
+            });
+            if (removedHere) {
+                removed = true;
+                if (tree.touching.getSize(touchingId) == 0) {
+                    tree.touching.remove(touchingId);
+                    touchingIds[directionIndex] = -1;
+                }
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Steps through the chains touching this one in all directions, in the same way as IntPairSetHeap.Cursor.
+     */
+    public class TouchingCursor {
+        private final IntPairSetHeap<Chain>.Cursor cursor = tree.touching.cursor(-1);
+        private int directionIndex = -1;
+
+        public boolean hasNext() {
+            while (!cursor.hasNext()) {
+                if (touchingIds == null || directionIndex == touchingIds.length - 1) {
+                    return false;
+                }
+                directionIndex++;
+                cursor.reset(touchingIds[directionIndex]);
+            }
+            return true;
+        }
+
+        public void next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            cursor.next();
+        }
+
+        public int getA() {
+            return cursor.getA();
+        }
+
+        public Chain getB() {
+            return cursor.getB();
+        }
     }
 
     public String toString() {
@@ -446,6 +800,7 @@ public class Chain {
             TreeUtils.assrt(parent.node.size == node.size * 2);
         }
         TreeUtils.assrt(numSubchains() > 0);
+        validateFaceMasks();
         for (Pair<Integer, Chain> subchain : subchains()) {
             TreeUtils.assrt(subchain.b.parent == this);
             TreeUtils.assrt(subchain.b.isActive()); // In theory, this is covered by the next test (if it's in a node's chain list, it'll
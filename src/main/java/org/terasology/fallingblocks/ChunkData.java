@@ -0,0 +1,106 @@
+// Copyright 2021 The Terasology Foundation
+// SPDX-License-Identifier: Apache-2.0
+
+package org.terasology.fallingblocks;
+
+import static org.terasology.fallingblocks.Tree.CHUNK_NODE_SIZE;
+
+/**
+ * The solidity of every block in a chunk-sized region, one bit each. The bits are arranged in octree order, so that the
+ * blocks of any aligned cube are contiguous, in the same order as the octants of InternalNode. In particular, each aligned
+ * 4x4x4 cube is exactly one word. Regions that are all empty or all solid share a single constant instance with no array.
+ */
+public final class ChunkData {
+    public static final int BLOCKS = CHUNK_NODE_SIZE * CHUNK_NODE_SIZE * CHUNK_NODE_SIZE;
+    public static final int WORDS = BLOCKS / 64;
+
+    public static final ChunkData EMPTY = new ChunkData(null, false);
+    public static final ChunkData SOLID = new ChunkData(null, true);
+
+    // Each coordinate value with its bits spread out to every third position.
+    private static final int[] SPREAD = new int[CHUNK_NODE_SIZE];
+
+    static {
+        for (int i = 0; i < CHUNK_NODE_SIZE; i++) {
+            int spread = 0;
+            for (int bit = 0; (1 << bit) < CHUNK_NODE_SIZE; bit++) {
+                spread |= ((i >> bit) & 1) << (3 * bit);
+            }
+            SPREAD[i] = spread;
+        }
+    }
+
+    private final long[] words;
+    private final boolean uniformValue;
+
+    private ChunkData(long[] words, boolean uniformValue) {
+        this.words = words;
+        this.uniformValue = uniformValue;
+    }
+
+    /**
+     * Start a new region with every block empty, to be filled in with `set`.
+     */
+    public ChunkData() {
+        this(new long[WORDS], false);
+    }
+
+    /**
+     * The position of the block in the bit order, given its coordinates relative to the corner of the region.
+     */
+    public static int index(int x, int y, int z) {
+        return (SPREAD[x] << 2) | (SPREAD[y] << 1) | SPREAD[z];
+    }
+
+    public void set(int x, int y, int z) {
+        int i = index(x, y, z);
+        words[i >>> 6] |= 1L << i;
+    }
+
+    public boolean isSolid(int index) {
+        if (words == null) {
+            return uniformValue;
+        }
+        return (words[index >>> 6] & (1L << index)) != 0;
+    }
+
+    public boolean isUniform() {
+        return words == null;
+    }
+
+    /**
+     * Only meaningful if the region is uniform.
+     */
+    public boolean getUniformValue() {
+        return uniformValue;
+    }
+
+    /**
+     * The word containing the blocks from `64 * i` to `64 * i + 63`.
+     */
+    public long getWord(int i) {
+        if (words == null) {
+            return uniformValue ? -1L : 0L;
+        }
+        return words[i];
+    }
+
+    /**
+     * @return One of the shared constants if the region turned out to be uniform, otherwise this.
+     */
+    public ChunkData compact() {
+        if (words == null) {
+            return this;
+        }
+        long first = words[0];
+        if (first != 0 && first != -1L) {
+            return this;
+        }
+        for (long word : words) {
+            if (word != first) {
+                return this;
+            }
+        }
+        return first == 0 ? EMPTY : SOLID;
+    }
+}
@@ -0,0 +1,47 @@
+// Copyright 2021 The Terasology Foundation
+// SPDX-License-Identifier: Apache-2.0
+
+package org.terasology.fallingblocks;
+
+import org.joml.Vector3i;
+import org.terasology.fallingblocks.arrays.LongObjectMap;
+import org.terasology.fallingblocks.node.NodePath;
+
+/**
+ * For each chunk-sized slice of a tree, the path from the root node down to the slice's node, so that changes to the blocks in
+ * it can start from there rather than from the root. The paths are found the first time they're needed and checked each time
+ * they're used, so nothing here needs updating when the structure of the tree changes.
+ */
+public class ChunkDirectory {
+    private final LongObjectMap<NodePath> paths = new LongObjectMap<>();
+
+    /**
+     * @param pos Any position in the slice, in world coordinates. It must be within the root node.
+     * @return The path to the slice's node, or null if it doesn't have its own node
+     */
+    public NodePath getPath(Tree tree, Vector3i pos) {
+        long key = key(pos);
+        NodePath path = paths.get(key);
+        if (path == null || !path.isValid(tree.rootNode)) {
+            path = NodePath.find(tree.rootNode, new Vector3i(pos).sub(tree.rootNodePos), Tree.CHUNK_NODE_SIZE);
+            if (path == null) {
+                paths.remove(key);
+            } else {
+                paths.put(key, path);
+            }
+        }
+        return path;
+    }
+
+    /**
+     * Forget the path to a slice which has been unloaded.
+     */
+    public void remove(Vector3i pos) {
+        paths.remove(key(pos));
+    }
+
+    static long key(Vector3i pos) {
+        return TreeUtils.packCoordinates(Math.floorDiv(pos.x, Tree.CHUNK_NODE_SIZE), Math.floorDiv(pos.y, Tree.CHUNK_NODE_SIZE),
+                Math.floorDiv(pos.z, Tree.CHUNK_NODE_SIZE));
+    }
+}
@@ -0,0 +1,84 @@
+// Copyright 2021 The Terasology Foundation
+// SPDX-License-Identifier: Apache-2.0
+
+package org.terasology.fallingblocks;
+
+import static org.terasology.fallingblocks.Tree.CHUNK_NODE_SIZE;
+
+/**
+ * Which of the aligned cubes in a ChunkData are entirely empty or entirely solid, worked out bottom-up a whole word at a
+ * time, so that building the octree never has to look at the same block twice.
+ */
+public final class ChunkSummary {
+    public static final int MIXED = -1;
+    public static final int EMPTY = 0;
+    public static final int SOLID = 1;
+
+    private final ChunkData data;
+    // For each level, starting with the 4x4x4 cubes and going up by a factor of 2 each time, a bitset with one bit per cube.
+    private final long[][] empty;
+    private final long[][] solid;
+
+    public ChunkSummary(ChunkData data) {
+        this.data = data;
+        int levels = Integer.numberOfTrailingZeros(CHUNK_NODE_SIZE) - 1;
+        empty = new long[levels][];
+        solid = new long[levels][];
+        empty[0] = new long[ChunkData.WORDS / 64];
+        solid[0] = new long[ChunkData.WORDS / 64];
+        for (int i = 0; i < ChunkData.WORDS; i++) {
+            long word = data.getWord(i);
+            if (word == 0) {
+                empty[0][i >>> 6] |= 1L << i;
+            } else if (word == -1L) {
+                solid[0][i >>> 6] |= 1L << i;
+            }
+        }
+        for (int level = 1; level < levels; level++) {
+            empty[level] = combine(empty[level - 1]);
+            solid[level] = combine(solid[level - 1]);
+        }
+    }
+
+    public ChunkData getData() {
+        return data;
+    }
+
+    /**
+     * Each cube is uniform iff all 8 of its octants are uniform with the same value, and the octants are consecutive bits.
+     */
+    private static long[] combine(long[] bits) {
+        long[] result = new long[(bits.length + 7) / 8];
+        for (int i = 0; i < bits.length; i++) {
+            long t = bits[i] & (bits[i] >>> 1);
+            t &= t >>> 2;
+            t &= t >>> 4;
+            // Now bit 8k of t says whether byte k was all ones. Gather those bits into the bottom byte.
+            long gathered = ((t & 0x0101010101010101L) * 0x0102040810204080L) >>> 56;
+            result[i / 8] |= gathered << (8 * (i % 8));
+        }
+        return result;
+    }
+
+    /**
+     * @param start The index of the first block of the cube (see ChunkData.index)
+     * @return EMPTY, SOLID or MIXED
+     */
+    public int uniformity(int size, int start) {
+        int volume = size * size * size;
+        if (volume < 64) {
+            long mask = (1L << volume) - 1;
+            long bits = (data.getWord(start >>> 6) >>> (start & 63)) & mask;
+            return bits == 0 ? EMPTY : bits == mask ? SOLID : MIXED;
+        }
+        int level = Integer.numberOfTrailingZeros(size) - 2;
+        int cube = start / volume;
+        if ((empty[level][cube >>> 6] & (1L << cube)) != 0) {
+            return EMPTY;
+        } else if ((solid[level][cube >>> 6] & (1L << cube)) != 0) {
+            return SOLID;
+        } else {
+            return MIXED;
+        }
+    }
+}
@@ -8,6 +8,7 @@ import org.joml.Vector3i;
 import org.joml.Vector3ic;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.terasology.engine.core.PathManager;
 import org.terasology.engine.entitySystem.entity.EntityManager;
 import org.terasology.engine.entitySystem.entity.EntityRef;
 import org.terasology.engine.entitySystem.metadata.ComponentMetadata;
@@ -17,6 +18,7 @@ import org.terasology.engine.entitySystem.systems.BaseComponentSystem;
 import org.terasology.engine.entitySystem.systems.RegisterMode;
 import org.terasology.engine.entitySystem.systems.RegisterSystem;
 import org.terasology.engine.entitySystem.systems.UpdateSubscriberSystem;
+import org.terasology.engine.game.Game;
 import org.terasology.engine.input.cameraTarget.CameraTargetSystem;
 import org.terasology.engine.logic.characters.CharacterMovementComponent;
 import org.terasology.engine.logic.common.RetainComponentsComponent;
@@ -33,13 +35,17 @@ import org.terasology.engine.world.block.Block;
 import org.terasology.engine.world.block.BlockComponent;
 import org.terasology.engine.world.block.BlockManager;
 import org.terasology.engine.world.block.regions.BlockRegionComponent;
+import org.terasology.engine.world.chunks.Chunk;
+import org.terasology.engine.world.chunks.ChunkProvider;
 import org.terasology.engine.world.chunks.Chunks;
 import org.terasology.engine.world.chunks.event.BeforeChunkUnload;
 import org.terasology.engine.world.chunks.event.OnChunkLoaded;
-import org.terasology.fallingblocks.updates.AdditionUpdate;
+import org.terasology.fallingblocks.updates.BlockChangesUpdate;
+import org.terasology.fallingblocks.updates.BulkLoadUpdate;
+import org.terasology.fallingblocks.updates.BulkUnloadUpdate;
+import org.terasology.fallingblocks.updates.DetectionPolicy;
 import org.terasology.fallingblocks.updates.LoadUpdate;
-import org.terasology.fallingblocks.updates.RemovalUpdate;
-import org.terasology.fallingblocks.updates.UnloadUpdate;
+import org.terasology.fallingblocks.updates.SnapshotUpdate;
 import org.terasology.fallingblocks.updates.Update;
 import org.terasology.fallingblocks.updates.UpdateThread;
 import org.terasology.fallingblocks.updates.ValidateUpdate;
@@ -48,6 +54,9 @@ import org.terasology.gestalt.entitysystem.event.ReceiveEvent;
 import org.terasology.module.health.components.HealthComponent;
 import org.terasology.module.health.events.DoDamageEvent;
 
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -57,22 +66,53 @@ import java.util.Optional;
 import java.util.Set;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 @RegisterSystem(RegisterMode.AUTHORITY)
 public class FallingBlockSystem extends BaseComponentSystem implements UpdateSubscriberSystem {
 
     private static final Logger logger = LoggerFactory.getLogger(FallingBlockSystem.class);
+    // The file in the save directory holding the octree as of the last save.
+    private static final String SNAPSHOT_FILE = "fallingBlocks.snapshot";
+    // How long to wait for the snapshot to be written when the game shuts down, in seconds.
+    private static final long SNAPSHOT_TIMEOUT = 10;
 
     // TODO: Ideally this would be configurable, but I don't think there's currently a working way to do module configuration like this.
     public boolean detachByMoving = true;
+    // Track connectivity with the dynamic graph backend rather than the octree, for comparing the two.
+    public boolean useGraphConnectivity = false;
+    // Divide the world into fixed-size regions, each with its own octree (see RegionForest), rather than having one octree that
+    // grows to cover every loaded chunk. With players far apart, the single octree gets very deep.
+    public boolean useRegions = true;
+    // The number of threads updating separate regions of the world in parallel. With 0, they're all updated on the update thread
+    // itself.
+    public int regionWorkers = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    // The number of threads building newly loaded chunks in advance of inserting them into the octree. 0 builds them on the update
+    // thread as they're inserted.
+    public int buildParallelism = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    // When to check for detached block groups after blocks change, and the delays (in milliseconds) the policy uses.
+    public DetectionPolicy detectionPolicy = DetectionPolicy.QUIESCENCE;
+    public long detectionDelay = 20;
+    public long maxDetectionDelay = 100;
+    // The share of a core the update thread may use while the main thread is busy for longer than the target time (in
+    // milliseconds) each tick. With ticks faster than that, it runs unrestricted.
+    public double updateCpuShare = 0.5;
+    public long targetTickTime = 20;
+    // Save the octree along with the world, so that the chunks which haven't changed don't need building again when it's loaded
+    // (see TreeSnapshot).
+    public boolean saveSnapshots = true;
 
     @In
     private BlockManager blockManager;
     private Block air;
+    private SolidityTable solidityTable;
 
     @In
     private WorldProvider worldProvider;
 
+    @In
+    private ChunkProvider chunkProvider;
+
     @In
     private BlockEntityRegistry blockEntityRegistry;
 
@@ -85,30 +125,63 @@ public class FallingBlockSystem extends BaseComponentSystem implements UpdateSub
 
 
     private BlockingQueue<Update> updateQueue;
+    // The net change in solidity at each position since the last batch was sent: true for additions, false for removals.
+    private Map<Vector3i, Boolean> pendingChanges;
     private BlockingQueue<Set<Vector3i>> detachedChainQueue;
     private Object updatingFinishedMonitor;
     private UpdateThread updateThread;
+    // For measuring how long the main thread is busy each tick, and its CPU time at the last tick.
+    private final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+    private long lastTickCpuTime = -1;
 
     @In
     private CameraTargetSystem cameraTarget;
 
+    @In
+    private Game game;
+    // The snapshot from the last save, while some of it hasn't been loaded yet, and the one currently being saved.
+    private TreeSnapshot snapshot;
+    private SnapshotUpdate pendingSnapshot;
+
     @Override
     public void initialise() {
         fallingDamageType = prefabManager.getPrefab("fallingBlocks:blockFallingDamage");
         air = blockManager.getBlock(BlockManager.AIR_ID);
+        solidityTable = new SolidityTable(blockManager);
+        solidityTable.rebuild();
         updateQueue = new LinkedBlockingQueue<>();
+        pendingChanges = new HashMap<>();
         detachedChainQueue = new LinkedBlockingQueue<>();
         updatingFinishedMonitor = new Object();
-        updateThread = new UpdateThread(updateQueue, detachedChainQueue, updatingFinishedMonitor);
+        updateThread = new UpdateThread(updateQueue, detachedChainQueue, updatingFinishedMonitor, useGraphConnectivity, useRegions,
+                regionWorkers);
+        updateThread.setDetectionPolicy(detectionPolicy, detectionDelay, maxDetectionDelay, TimeUnit.MILLISECONDS);
+        updateThread.setBuildParallelism(buildParallelism);
+        updateThread.getScheduler().configure(updateCpuShare, targetTickTime, TimeUnit.MILLISECONDS);
         updateThread.start();
+        if (saveSnapshots && !useGraphConnectivity) {
+            snapshot = TreeSnapshot.open(getSnapshotFile());
+        }
+    }
+
+    private Path getSnapshotFile() {
+        return PathManager.getInstance().getSavePath(game.getName()).resolve(SNAPSHOT_FILE);
+    }
+
+    @Override
+    public void preSave() {
+        if (saveSnapshots && !useGraphConnectivity) {
+            flushBlockChanges();
+            pendingSnapshot = new SnapshotUpdate(getSnapshotFile());
+            updateQueue.add(pendingSnapshot);
+        }
     }
 
     // TODO: Maybe make this a WorldChangeListener instead? Compare efficiency.
-    //  Aggregate changes into batches (should improve efficiency and avoid confusing reentrant behaviour
-    //  when falling blocks cause block updates).
 
     /**
      * Called every time a block is changed. This means that the type of the block has changed.
+     * The changes are collected and sent to the update thread once per tick, so that changes which cancel out never reach it.
      *
      * @param event The block change event
      * @param blockEntity The entity of the block being changed
@@ -117,18 +190,46 @@ public class FallingBlockSystem extends BaseComponentSystem implements UpdateSub
     public void blockUpdate(OnChangedBlock event, EntityRef blockEntity) {
         boolean oldSolid = TreeUtils.isSolid(event.getOldType());
         boolean newSolid = TreeUtils.isSolid(event.getNewType());
-        if (oldSolid && !newSolid) {
-            updateQueue.add(new RemovalUpdate(event.getBlockPosition()));
-        } else if (newSolid && !oldSolid) {
-            updateQueue.add(new AdditionUpdate(event.getBlockPosition()));
+        if (oldSolid != newSolid) {
+            Vector3i pos = new Vector3i(event.getBlockPosition());
+            Boolean pending = pendingChanges.get(pos);
+            if (pending != null && pending != newSolid) {
+                // The block has been changed back to how it was when the last batch was sent.
+                pendingChanges.remove(pos);
+            } else {
+                pendingChanges.put(pos, newSolid);
+            }
         }
     }
 
+    /**
+     * Send all the block changes collected since the last call to the update thread as a single update.
+     * This must happen before anything else is added to the queue, so that the updates stay in order.
+     */
+    private void flushBlockChanges() {
+        if (pendingChanges.isEmpty()) {
+            return;
+        }
+        List<Vector3i> additions = new ArrayList<>();
+        List<Vector3i> removals = new ArrayList<>();
+        for (Map.Entry<Vector3i, Boolean> change : pendingChanges.entrySet()) {
+            if (change.getValue()) {
+                additions.add(change.getKey());
+            } else {
+                removals.add(change.getKey());
+            }
+        }
+        pendingChanges.clear();
+        updateQueue.add(new BlockChangesUpdate(additions, removals));
+    }
+
     /**
      * Called once per tick.
      */
     @Override
     public void update(float delta) {
+        updateThread.getScheduler().reportTick(tickBusyTime(delta));
+        flushBlockChanges();
         Set<Vector3i> positions = detachedChainQueue.poll();
         while (positions != null) {
             synchronized (updatingFinishedMonitor) {
@@ -138,27 +239,61 @@ public class FallingBlockSystem extends BaseComponentSystem implements UpdateSub
         }
     }
 
+    /**
+     * How long the main thread was busy since the last tick, in nanoseconds. The time between ticks also includes any waiting for
+     * a frame cap or vsync, which would make a client capped below the target tick rate look overloaded all the time, so this is
+     * the thread's CPU time instead, where the JVM can measure it.
+     */
+    private long tickBusyTime(float delta) {
+        long cpuTime = threadMXBean.isCurrentThreadCpuTimeSupported() ? threadMXBean.getCurrentThreadCpuTime() : -1;
+        if (cpuTime == -1) {
+            return (long) (delta * 1e9);
+        }
+        long result = lastTickCpuTime == -1 ? 0 : cpuTime - lastTickCpuTime;
+        lastTickCpuTime = cpuTime;
+        return result;
+    }
+
     @ReceiveEvent
     public void chunkLoaded(OnChunkLoaded event, EntityRef entity) {
+        flushBlockChanges();
         Vector3i chunkPos = new Vector3i(event.getChunkPos());
         chunkPos.mul(Chunks.SIZE_X, Chunks.SIZE_Y, Chunks.SIZE_Z);
+        Chunk chunk = chunkProvider.getChunk(event.getChunkPos());
+        List<LoadUpdate> slices = new ArrayList<>();
         for (int y = 0; y < Chunks.SIZE_Y; y += Tree.CHUNK_NODE_SIZE) {
             Vector3i pos = new Vector3i(chunkPos).add(0, y, 0);
             //logger.info("Loading chunk at "+pos+".");
-            boolean[] chunkData = TreeUtils.extractChunkData(worldProvider, pos);
-            updateQueue.add(new LoadUpdate(chunkData, pos));
+            ChunkData chunkData;
+            if (chunk != null) {
+                chunkData = TreeUtils.extractChunkData(chunk, y, solidityTable);
+            } else {
+                chunkData = TreeUtils.extractChunkData(worldProvider, pos);
+            }
+            LoadUpdate slice = new LoadUpdate(chunkData, pos);
+            if (snapshot != null) {
+                slice.useSnapshot(snapshot.take(pos));
+            }
+            slices.add(slice);
+        }
+        if (snapshot != null && snapshot.isEmpty()) {
+            snapshot = null;
         }
+        updateQueue.add(new BulkLoadUpdate(slices));
     }
 
     @ReceiveEvent
     public void chunkUnloaded(BeforeChunkUnload event, EntityRef entity) {
+        flushBlockChanges();
         Vector3i chunkPos = new Vector3i(event.getChunkPos());
         chunkPos.mul(Chunks.SIZE_X, Chunks.SIZE_Y, Chunks.SIZE_Z);
+        List<Vector3i> positions = new ArrayList<>();
         for (int y = 0; y < Chunks.SIZE_Y; y += Tree.CHUNK_NODE_SIZE) {
             Vector3i pos = new Vector3i(chunkPos).add(0, y, 0);
             //logger.info("Unloading chunk at "+pos+".");
-            updateQueue.add(new UnloadUpdate(pos));
+            positions.add(pos);
         }
+        updateQueue.add(new BulkUnloadUpdate(positions));
     }
 
     private void blockGroupDetached(Set<Vector3i> positions) {
@@ -352,12 +487,22 @@ public class FallingBlockSystem extends BaseComponentSystem implements UpdateSub
 
     @Override
     public void shutdown() {
+        if (pendingSnapshot != null && updateThread.isAlive()) {
+            try {
+                if (!pendingSnapshot.awaitFinished(SNAPSHOT_TIMEOUT, TimeUnit.SECONDS)) {
+                    logger.warn("Gave up waiting for the FallingBlocks snapshot to be saved.");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
         updateThread.interrupt();
     }
 
     @Command(shortDescription = "Print debug information relating to FallingBlocks.",
             helpText = "Validate the current state of the octree of FallingBlocks.")
     public String fallingBlocksDebug() {
+        flushBlockChanges();
         updateQueue.add(new ValidateUpdate());
         if (!updateThread.isAlive()) {
             return "FallingBlocks updater thread already dead.";
@@ -382,10 +527,11 @@ public class FallingBlockSystem extends BaseComponentSystem implements UpdateSub
             return "FallingBlocks update thread already dead.";
         } else {
             int updates = updateQueue.size();
+            String schedulerStatus = updateThread.getScheduler().getStatus();
             if (updates == 0) {
-                return "Updating finished.";
+                return "Updating finished. " + schedulerStatus;
             } else {
-                return "Updates left: " + updates;
+                return "Updates left: " + updates + ". " + schedulerStatus;
             }
         }
     }
@@ -8,6 +8,7 @@ import org.terasology.fallingblocks.node.FullNode;
 import org.terasology.fallingblocks.node.SolidNode;
 import org.terasology.fallingblocks.node.UnloadedNode;
 
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Set;
 import java.util.Stack;
@@ -61,22 +62,34 @@ public class FullChain extends Chain {
      * Returns the top-level chains (i.e. most distant ancestor) resulting from this split.
      */
     @Override
-    public Set<Chain> checkConnectivity() {
+    public Set<Chain> checkConnectivity(boolean sidesUnchanged) {
         // This can't actually be disconnected, so just return the result without modifying anything.
         if (parent == null) {
             Set<Chain> result = new HashSet<>();
             result.add(this);
             return result;
         } else {
-            return parent.checkConnectivity();
+            return parent.checkConnectivity(sidesUnchanged);
         }
     }
 
+    @Override
+    Set<Chain> checkConnectivityHere(boolean sidesUnchanged) {
+        Set<Chain> result = new HashSet<>();
+        result.add(this);
+        return result;
+    }
+
     @Override
     public boolean isTouching(int side) {
         return true;
     }
 
+    @Override
+    void computeFaceMasks(short[] masks) {
+        Arrays.fill(masks, (short) 0xFFFF);
+    }
+
     @Override
     public boolean isTouchingAnySide() {
         return true;
@@ -0,0 +1,164 @@
+// Copyright 2021 The Terasology Foundation
+// SPDX-License-Identifier: Apache-2.0
+
+package org.terasology.fallingblocks;
+
+import org.joml.Vector3i;
+import org.terasology.fallingblocks.node.UnloadedNode;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The world divided into independent trees, one for each fixed-size cubic region with any chunks loaded. Each tree has its own
+ * storage, so different regions can be updated on different threads at the same time.
+ * <p>
+ * The trees don't know about each other, so the chains of a region's root node that reach its boundary are joined up to those
+ * of the neighbouring regions here, only when looking for detached groups. A region that isn't present is entirely unloaded, and
+ * so supports anything touching it, just like the space outside the root node of a single tree.
+ */
+public class RegionForest {
+    public static final int REGION_SIZE = Tree.CHUNK_NODE_SIZE * 8;
+
+    private final Map<Vector3i, Tree> regions = new HashMap<>();
+
+    /**
+     * The position of the region containing the given position. The regions line up with the largest divisions of the octree
+     * (see Tree.ROOT_OFFSET), so that a region's tree is exactly what a single tree would have at that level.
+     */
+    public static Vector3i regionPos(Vector3i pos) {
+        Vector3i offsetPos = new Vector3i(pos).add(Tree.ROOT_OFFSET, Tree.ROOT_OFFSET, Tree.ROOT_OFFSET);
+        return new Vector3i(pos).sub(TreeUtils.modVector(offsetPos, REGION_SIZE));
+    }
+
+    public Tree getRegion(Vector3i regionPos) {
+        return regions.get(regionPos);
+    }
+
+    /**
+     * Get the tree for the region, starting a new one with everything unloaded if necessary.
+     */
+    public Tree getOrCreateRegion(Vector3i regionPos) {
+        Tree tree = regions.get(regionPos);
+        if (tree == null) {
+            tree = new Tree();
+            tree.fixedRoot = true;
+            tree.rootNode = new UnloadedNode(REGION_SIZE, tree).equivalentInternalNode();
+            tree.rootNodePos = new Vector3i(regionPos);
+            regions.put(tree.rootNodePos, tree);
+        }
+        return tree;
+    }
+
+    /**
+     * Forget about the region if none of it is loaded any more.
+     */
+    public void removeIfUnloaded(Vector3i regionPos) {
+        Tree tree = regions.get(regionPos);
+        if (tree != null && tree.rootNode instanceof UnloadedNode) {
+            regions.remove(regionPos);
+        }
+    }
+
+    public Collection<Tree> getRegions() {
+        return regions.values();
+    }
+
+    /**
+     * Add the root chains of all the regions next to the given one. Changes near the boundary of a region can detach chains in
+     * these without any of their own chains being updated.
+     */
+    public void addNeighbourRootChains(Vector3i regionPos, Set<Chain> result) {
+        for (int side : TreeUtils.DIRECTIONS) {
+            Tree neighbour = regions.get(neighbourPos(regionPos, side));
+            if (neighbour != null) {
+                result.addAll(neighbour.rootNode.getChains());
+            }
+        }
+    }
+
+    /**
+     * Find which of the groups of blocks containing the given chains aren't connected to anything unloaded, either within their
+     * own region or through the regions around it.
+     *
+     * @return The positions of the blocks in each detached group
+     */
+    public List<Set<Vector3i>> findDetached(Collection<Chain> chains) {
+        List<Set<Vector3i>> result = new ArrayList<>();
+        Set<Chain> seen = new HashSet<>();
+        for (Chain chain : chains) {
+            Chain root = chain.getTopAncestor();
+            if (!root.isActive() || root.supported || seen.contains(root)) {
+                continue;
+            }
+            Set<Chain> group = new HashSet<>();
+            boolean detached = collectGroup(root, seen, group);
+            if (detached) {
+                Set<Vector3i> positions = new HashSet<>();
+                for (Chain member : group) {
+                    positions.addAll(member.getPositions(member.tree.rootNodePos));
+                }
+                result.add(positions);
+            }
+            seen.addAll(group);
+        }
+        return result;
+    }
+
+    /**
+     * Search outwards from an unsupported root chain through the root chains of neighbouring regions that it touches.
+     *
+     * @param seen The chains reached by previous searches. A detached group would have been found in full, so reaching one of
+     *             these means that this group is supported.
+     * @return Whether the whole group was found without finding anything supported
+     */
+    private boolean collectGroup(Chain start, Set<Chain> seen, Set<Chain> group) {
+        Deque<Chain> queue = new ArrayDeque<>();
+        queue.add(start);
+        group.add(start);
+        while (!queue.isEmpty()) {
+            Chain chain = queue.remove();
+            if (chain.supported) {
+                return false;
+            }
+            for (int side : TreeUtils.DIRECTIONS) {
+                if (!chain.isTouching(side)) {
+                    continue;
+                }
+                Tree neighbour = regions.get(neighbourPos(chain.tree.rootNodePos, side));
+                if (neighbour == null) {
+                    return false;
+                }
+                for (Chain neighbourChain : neighbour.rootNode.getChains()) {
+                    if (!group.contains(neighbourChain) && chain.deepIsTouching(neighbourChain, side)) {
+                        if (seen.contains(neighbourChain)) {
+                            return false;
+                        }
+                        group.add(neighbourChain);
+                        queue.add(neighbourChain);
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    public void compactIfSparse() {
+        for (Tree tree : regions.values()) {
+            tree.compactIfSparse();
+        }
+    }
+
+    private static Vector3i neighbourPos(Vector3i regionPos, int side) {
+        return new Vector3i(regionPos).add(side == 4 ? REGION_SIZE : side == -4 ? -REGION_SIZE : 0,
+                side == 2 ? REGION_SIZE : side == -2 ? -REGION_SIZE : 0,
+                side == 1 ? REGION_SIZE : side == -1 ? -REGION_SIZE : 0);
+    }
+}
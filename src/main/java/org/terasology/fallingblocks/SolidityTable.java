@@ -0,0 +1,54 @@
+// Copyright 2021 The Terasology Foundation
+// SPDX-License-Identifier: Apache-2.0
+
+package org.terasology.fallingblocks;
+
+import org.terasology.engine.world.block.Block;
+import org.terasology.engine.world.block.BlockManager;
+
+/**
+ * A cache of whether each block ID counts as solid, so that whole chunks can be read without looking up every Block.
+ * Block IDs are never reassigned, so an entry never goes stale. IDs registered after the table was last rebuilt are
+ * looked up in the BlockManager the first time they're seen.
+ */
+public class SolidityTable {
+    private static final byte UNKNOWN = 0;
+    private static final byte SOLID = 1;
+    private static final byte NOT_SOLID = 2;
+
+    private final BlockManager blockManager;
+    private byte[] states = new byte[0];
+
+    public SolidityTable(BlockManager blockManager) {
+        this.blockManager = blockManager;
+    }
+
+    /**
+     * Fill in the table for every block currently registered.
+     */
+    public void rebuild() {
+        for (Block block : blockManager.listRegisteredBlocks()) {
+            record(block.getId(), TreeUtils.isSolid(block));
+        }
+    }
+
+    public boolean isSolid(short id) {
+        int index = id & 0xFFFF;
+        if (index < states.length && states[index] != UNKNOWN) {
+            return states[index] == SOLID;
+        }
+        boolean solid = TreeUtils.isSolid(blockManager.getBlock(id));
+        record(id, solid);
+        return solid;
+    }
+
+    private void record(short id, boolean solid) {
+        int index = id & 0xFFFF;
+        if (index >= states.length) {
+            byte[] oldStates = states;
+            states = new byte[Math.max(index + 1, oldStates.length * 2)];
+            System.arraycopy(oldStates, 0, states, 0, oldStates.length);
+        }
+        states[index] = solid ? SOLID : NOT_SOLID;
+    }
+}
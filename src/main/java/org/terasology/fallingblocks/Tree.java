@@ -6,6 +6,7 @@ package org.terasology.fallingblocks;
 import org.joml.Vector3i;
 import org.terasology.engine.world.chunks.Chunks;
 import org.terasology.fallingblocks.arrays.IntPairSetHeap;
+import org.terasology.fallingblocks.arrays.UnionFind;
 import org.terasology.fallingblocks.node.EmptyNode;
 import org.terasology.fallingblocks.node.Node;
 
@@ -26,12 +27,30 @@ public class Tree {
 
     public Node rootNode = null;
     public Vector3i rootNodePos = null;
+    // Whether the root node always covers the same region (as in a RegionForest), rather than growing and shrinking to fit the
+    // loaded chunks.
+    public boolean fixedRoot = false;
+
+    public final ChunkDirectory chunkDirectory = new ChunkDirectory();
 
     // For all of the chains, the chains in sub-nodes that compose them, and the octants they're in
     IntPairSetHeap<Chain> subchains = new IntPairSetHeap<>(8);
 
-    // For all the chains, the chains in adjacent nodes of the same size that they touch, and the directions to them.
-    IntPairSetHeap<Chain> touching = new IntPairSetHeap<>(6);
+    // For all the chains and directions, the chains in adjacent nodes of the same size that they touch in that direction, and the
+    // direction again. Each chain has a separate set for each direction, so these are usually small.
+    IntPairSetHeap<Chain> touching = new IntPairSetHeap<>(2);
+
+    // Scratch space for working out connected components. Only one search uses it at a time.
+    public final UnionFind unionFind = new UnionFind();
+
+    /**
+     * Release unused storage if many chains have been removed. This must only be called between updates, as it can
+     * change the chains' ids.
+     */
+    public void compactIfSparse() {
+        subchains.compactIfSparse();
+        touching.compactIfSparse();
+    }
 
     public boolean isWithinRootNode(Vector3i pos) {
         return rootNodePos != null
@@ -0,0 +1,490 @@
+// Copyright 2021 The Terasology Foundation
+// SPDX-License-Identifier: Apache-2.0
+
+package org.terasology.fallingblocks;
+
+import org.joml.Vector3i;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.terasology.fallingblocks.arrays.LongObjectMap;
+import org.terasology.fallingblocks.node.BrickNode;
+import org.terasology.fallingblocks.node.EmptyNode;
+import org.terasology.fallingblocks.node.InternalNode;
+import org.terasology.fallingblocks.node.Node;
+import org.terasology.fallingblocks.node.SolidNode;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+import static org.terasology.fallingblocks.Tree.CHUNK_NODE_SIZE;
+
+/**
+ * The chunk-sized slices of the tree as they were when the world was last saved, so that a slice which loads again with the same
+ * blocks can have its node read back, with all its chains and their subchains and touching sets, rather than built from scratch.
+ * Only slices with mixed blocks are kept, as uniform ones are trivial to build anyway.
+ * <p>
+ * The whole file is read in when it's opened, with each slice copied out into its own array, so nothing keeps the file open or
+ * mapped while the next save replaces it, and each slice's data can be freed once it's loaded. Terasology doesn't keep version
+ * numbers for chunks, so instead each slice is checked against the blocks it's loaded with before it's used, which also catches
+ * changes made while the module wasn't running.
+ * <p>
+ * Beyond that, the file is trusted to have been written by this class. The check only makes sure that the data can be read
+ * without errors, not that the chains and their touching relations are the right ones for the blocks, as that would take as long
+ * as building the slice again. Each slice has a checksum so that damage to the file is noticed.
+ * <p>
+ * The file starts with a header of four ints (MAGIC, VERSION, CHUNK_NODE_SIZE and the number of slices), then an index entry for
+ * each slice of six ints (its position, the offset and length of its data, and the CRC-32 of the data), then the data for each
+ * slice. That's its node,
+ * depth-first, followed by the touching relations between chains within the slice. Each node is a tag byte, followed by the block
+ * mask for a BRICK, or for an INTERNAL node, its 8 children and then its chains, each as a list of subchains. A subchain is given
+ * by its octant and its position in the child's chains, which are in the order they were written for an InternalNode and in order
+ * of their lowest block for a BrickNode. The chains of the whole slice are numbered in the order they're written, which is how
+ * the touching relations refer to them.
+ */
+public final class TreeSnapshot {
+    private static final Logger logger = LoggerFactory.getLogger(TreeSnapshot.class);
+
+    private static final int MAGIC = 0x46425331;
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 16;
+    private static final int INDEX_ENTRY_BYTES = 24;
+    private static final int TOUCHING_BYTES = 9;
+
+    private static final byte EMPTY = 0;
+    private static final byte SOLID = 1;
+    private static final byte BRICK = 2;
+    private static final byte INTERNAL = 3;
+
+    private static final Comparator<Chain> BRICK_CHAIN_ORDER =
+            Comparator.comparingInt(chain -> Long.numberOfTrailingZeros(((BrickChain) chain).getBlocks()));
+
+    // The slices that haven't been taken yet, by the same key as ChunkDirectory.
+    private final LongObjectMap<Slice> slices = new LongObjectMap<>();
+
+    private TreeSnapshot() {
+    }
+
+    /**
+     * Read the snapshot file, if there is a usable one.
+     *
+     * @return The snapshot, or null if the file doesn't exist or can't be used
+     */
+    public static TreeSnapshot open(Path file) {
+        if (!Files.isRegularFile(file)) {
+            return null;
+        }
+        try {
+            if (Files.size(file) > Integer.MAX_VALUE) {
+                logger.warn("Ignoring FallingBlocks snapshot {}, as it's too large.", file);
+                return null;
+            }
+            byte[] contents = Files.readAllBytes(file);
+            ByteBuffer buffer = ByteBuffer.wrap(contents);
+            int limit = buffer.limit();
+            if (limit < HEADER_BYTES || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION
+                    || buffer.getInt(8) != CHUNK_NODE_SIZE) {
+                logger.warn("Ignoring FallingBlocks snapshot {}, as it's from a different version.", file);
+                return null;
+            }
+            int count = buffer.getInt(12);
+            long dataStart = HEADER_BYTES + (long) INDEX_ENTRY_BYTES * count;
+            if (count < 0 || dataStart > limit) {
+                logger.warn("Ignoring FallingBlocks snapshot {}, as it's incomplete.", file);
+                return null;
+            }
+            TreeSnapshot snapshot = new TreeSnapshot();
+            for (int i = 0; i < count; i++) {
+                int entry = HEADER_BYTES + INDEX_ENTRY_BYTES * i;
+                Vector3i pos = new Vector3i(buffer.getInt(entry), buffer.getInt(entry + 4), buffer.getInt(entry + 8));
+                int offset = buffer.getInt(entry + 12);
+                int length = buffer.getInt(entry + 16);
+                int checksum = buffer.getInt(entry + 20);
+                if (offset < dataStart || length < 0 || offset > limit - length) {
+                    logger.warn("Ignoring FallingBlocks snapshot {}, as it's incomplete.", file);
+                    return null;
+                }
+                byte[] bytes = Arrays.copyOfRange(contents, offset, offset + length);
+                snapshot.slices.put(ChunkDirectory.key(pos), new Slice(pos, bytes, checksum));
+            }
+            return snapshot;
+        } catch (IOException e) {
+            logger.warn("Failed to read FallingBlocks snapshot {}.", file, e);
+            return null;
+        }
+    }
+
+    /**
+     * Remove the stored copy of a slice from the snapshot, to use when it loads. This isn't thread-safe, so it should only be
+     * called from one thread.
+     *
+     * @param pos The position of the slice, in world coordinates
+     * @return The stored slice, or null if there isn't one
+     */
+    public Slice take(Vector3i pos) {
+        long key = ChunkDirectory.key(pos);
+        Slice slice = slices.get(key);
+        if (slice == null) {
+            return null;
+        }
+        slices.remove(key);
+        return slice.pos.equals(pos) ? slice : null;
+    }
+
+    public boolean isEmpty() {
+        return slices.size() == 0;
+    }
+
+    /**
+     * Serialise all of the loaded slices of the tree that aren't uniform.
+     *
+     * @param result The map to add the data for each slice to, by the slice's position
+     */
+    public static void serialiseSlices(Tree tree, Map<Vector3i, byte[]> result) {
+        if (tree.rootNode != null) {
+            serialiseSlices(tree.rootNode, tree.rootNodePos, result);
+        }
+    }
+
+    private static void serialiseSlices(Node node, Vector3i pos, Map<Vector3i, byte[]> result) {
+        if (node.size == CHUNK_NODE_SIZE) {
+            if (node instanceof InternalNode) {
+                byte[] data = serialise(node);
+                if (data != null) {
+                    result.put(new Vector3i(pos), data);
+                }
+            }
+        } else if (node instanceof InternalNode) {
+            int childSize = node.size / 2;
+            for (int octant = 0; octant < 8; octant++) {
+                Vector3i childPos = new Vector3i(pos).add(TreeUtils.isOctantOnSide(octant, 4) ? childSize : 0,
+                        TreeUtils.isOctantOnSide(octant, 2) ? childSize : 0,
+                        TreeUtils.isOctantOnSide(octant, 1) ? childSize : 0);
+                serialiseSlices(((InternalNode) node).children[octant], childPos, result);
+            }
+        }
+    }
+
+    /**
+     * @return The data for a slice with the given node, or null if it can't be stored (because part of it is unloaded)
+     */
+    private static byte[] serialise(Node node) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        List<Chain> chains = new ArrayList<>();
+        Map<Chain, Integer> ids = new IdentityHashMap<>();
+        try {
+            if (writeNode(out, node, chains, ids) == null) {
+                return null;
+            }
+            List<int[]> touching = new ArrayList<>();
+            for (int i = 0; i < chains.size(); i++) {
+                Chain.TouchingCursor cursor = chains.get(i).touchingCursor();
+                while (cursor.hasNext()) {
+                    cursor.next();
+                    // Relations with chains outside the slice are worked out again when it's inserted.
+                    Integer other = ids.get(cursor.getB());
+                    if (other != null && other > i) {
+                        touching.add(new int[]{i, other, cursor.getA()});
+                    }
+                }
+            }
+            out.writeInt(touching.size());
+            for (int[] relation : touching) {
+                out.writeInt(relation[0]);
+                out.writeInt(relation[1]);
+                out.writeByte(relation[2]);
+            }
+        } catch (IOException e) {
+            // Writing to a byte array can't actually fail.
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @return The node's chains, in the order they were numbered, or null if the node can't be stored
+     */
+    private static List<Chain> writeNode(DataOutputStream out, Node node, List<Chain> chains, Map<Chain, Integer> ids)
+            throws IOException {
+        List<Chain> nodeChains;
+        if (node instanceof EmptyNode) {
+            out.writeByte(EMPTY);
+            return Collections.emptyList();
+        } else if (node instanceof SolidNode) {
+            out.writeByte(SOLID);
+            nodeChains = new ArrayList<>(node.getChains());
+        } else if (node instanceof BrickNode) {
+            out.writeByte(BRICK);
+            out.writeLong(((BrickNode) node).getBlocks());
+            nodeChains = new ArrayList<>(node.getChains());
+            nodeChains.sort(BRICK_CHAIN_ORDER);
+        } else if (node instanceof InternalNode && node.size > BrickNode.SIZE) {
+            out.writeByte(INTERNAL);
+            Map<Chain, Integer> childIndices = new IdentityHashMap<>();
+            for (Node child : ((InternalNode) node).children) {
+                List<Chain> childChains = writeNode(out, child, chains, ids);
+                if (childChains == null) {
+                    return null;
+                }
+                for (int i = 0; i < childChains.size(); i++) {
+                    childIndices.put(childChains.get(i), i);
+                }
+            }
+            nodeChains = new ArrayList<>(node.getChains());
+            out.writeShort(nodeChains.size());
+            for (Chain chain : nodeChains) {
+                out.writeShort(chain.numSubchains());
+                for (Pair<Integer, Chain> subchain : chain.subchains()) {
+                    out.writeByte(subchain.a);
+                    out.writeShort(childIndices.get(subchain.b));
+                }
+            }
+        } else {
+            // Unloaded.
+            return null;
+        }
+        for (Chain chain : nodeChains) {
+            ids.put(chain, chains.size());
+            chains.add(chain);
+        }
+        return nodeChains;
+    }
+
+    /**
+     * Write a snapshot file containing the given slices, replacing any previous one. The new file is written in full before it
+     * replaces the old one, so that an interrupted save doesn't leave a broken snapshot behind.
+     *
+     * @param slices The data for each slice, from serialiseSlices
+     */
+    public static void write(Path file, Map<Vector3i, byte[]> slices) throws IOException {
+        long size = HEADER_BYTES + (long) INDEX_ENTRY_BYTES * slices.size();
+        for (byte[] data : slices.values()) {
+            size += data.length;
+        }
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Too much data for a FallingBlocks snapshot: " + size + " bytes.");
+        }
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(CHUNK_NODE_SIZE);
+            out.writeInt(slices.size());
+            int offset = HEADER_BYTES + INDEX_ENTRY_BYTES * slices.size();
+            for (Map.Entry<Vector3i, byte[]> slice : slices.entrySet()) {
+                out.writeInt(slice.getKey().x);
+                out.writeInt(slice.getKey().y);
+                out.writeInt(slice.getKey().z);
+                out.writeInt(offset);
+                out.writeInt(slice.getValue().length);
+                out.writeInt(checksum(slice.getValue()));
+                offset += slice.getValue().length;
+            }
+            for (byte[] data : slices.values()) {
+                out.write(data);
+            }
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static int checksum(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * The stored copy of a single slice.
+     */
+    public static final class Slice {
+        private final Vector3i pos;
+        private final byte[] bytes;
+        private final int checksum;
+
+        private Slice(Vector3i pos, byte[] bytes, int checksum) {
+            this.pos = pos;
+            this.bytes = bytes;
+            this.checksum = checksum;
+        }
+
+        /**
+         * Check that the slice has exactly the given blocks, and that the data is undamaged and all consistent, so that read
+         * can't fail. This doesn't touch the tree, so it can run on any thread.
+         */
+        public boolean matches(ChunkData data) {
+            if (checksum(bytes) != checksum) {
+                return false;
+            }
+            ByteBuffer in = view();
+            int[] totalChains = new int[1];
+            try {
+                if (checkNode(in, data, CHUNK_NODE_SIZE, 0, totalChains) < 0) {
+                    return false;
+                }
+                int touching = in.getInt();
+                if (touching < 0 || (long) touching * TOUCHING_BYTES != in.remaining()) {
+                    return false;
+                }
+                for (int i = 0; i < touching; i++) {
+                    int a = in.getInt();
+                    int b = in.getInt();
+                    int direction = in.get();
+                    if (a < 0 || b < 0 || a >= totalChains[0] || b >= totalChains[0] || a == b
+                            || Integer.bitCount(Math.abs(direction)) != 1 || Math.abs(direction) > 4) {
+                        return false;
+                    }
+                }
+                return true;
+            } catch (BufferUnderflowException e) {
+                return false;
+            }
+        }
+
+        /**
+         * @return The number of chains in the node, or -1 if it doesn't match
+         */
+        private static int checkNode(ByteBuffer in, ChunkData data, int size, int start, int[] totalChains) {
+            int chains;
+            byte tag = in.get();
+            switch (tag) {
+                case EMPTY:
+                case SOLID:
+                    boolean solid = tag == SOLID;
+                    int end = (start + size * size * size) >>> 6;
+                    for (int i = start >>> 6; i < end; i++) {
+                        if (data.getWord(i) != (solid ? -1L : 0L)) {
+                            return -1;
+                        }
+                    }
+                    chains = solid ? 1 : 0;
+                    break;
+                case BRICK:
+                    long blocks = in.getLong();
+                    if (size != BrickNode.SIZE || data.getWord(start >>> 6) != blocks) {
+                        return -1;
+                    }
+                    chains = 0;
+                    for (long remaining = blocks; remaining != 0; chains++) {
+                        remaining &= ~BrickUtils.component(remaining, Long.lowestOneBit(remaining));
+                    }
+                    break;
+                case INTERNAL:
+                    if (size == BrickNode.SIZE) {
+                        return -1;
+                    }
+                    // Every chain of the children must be the subchain of exactly one of this node's chains.
+                    boolean[][] used = new boolean[8][];
+                    int unused = 0;
+                    int childVolume = size * size * size / 8;
+                    for (int i = 0; i < 8; i++) {
+                        int childChains = checkNode(in, data, size / 2, start + i * childVolume, totalChains);
+                        if (childChains < 0) {
+                            return -1;
+                        }
+                        used[i] = new boolean[childChains];
+                        unused += childChains;
+                    }
+                    chains = in.getShort() & 0xFFFF;
+                    for (int i = 0; i < chains; i++) {
+                        int subchains = in.getShort() & 0xFFFF;
+                        if (subchains == 0) {
+                            return -1;
+                        }
+                        for (int j = 0; j < subchains; j++) {
+                            int octant = in.get();
+                            int index = in.getShort() & 0xFFFF;
+                            if (octant < 0 || octant >= 8 || index >= used[octant].length || used[octant][index]) {
+                                return -1;
+                            }
+                            used[octant][index] = true;
+                            unused--;
+                        }
+                    }
+                    if (unused != 0) {
+                        return -1;
+                    }
+                    break;
+                default:
+                    return -1;
+            }
+            totalChains[0] += chains;
+            return chains;
+        }
+
+        /**
+         * Build the slice's node from the stored data. This must only be called once matches has returned true.
+         */
+        public Node read(Tree tree) {
+            ByteBuffer in = view();
+            List<Chain> chains = new ArrayList<>();
+            Node node = readNode(in, tree, CHUNK_NODE_SIZE, chains);
+            int touching = in.getInt();
+            for (int i = 0; i < touching; i++) {
+                Chain a = chains.get(in.getInt());
+                Chain b = chains.get(in.getInt());
+                Chain.addTouching(a, b, in.get());
+            }
+            return node;
+        }
+
+        private static Node readNode(ByteBuffer in, Tree tree, int size, List<Chain> chains) {
+            switch (in.get()) {
+                case EMPTY:
+                    return EmptyNode.get(size, tree);
+                case SOLID:
+                    SolidNode solid = new SolidNode(size, tree);
+                    chains.addAll(solid.getChains());
+                    return solid;
+                case BRICK:
+                    BrickNode brick = new BrickNode(in.getLong(), tree);
+                    List<Chain> brickChains = new ArrayList<>(brick.getChains());
+                    brickChains.sort(BRICK_CHAIN_ORDER);
+                    chains.addAll(brickChains);
+                    return brick;
+                default:
+                    Node[] children = new Node[8];
+                    int[] childStarts = new int[8];
+                    for (int i = 0; i < 8; i++) {
+                        children[i] = readNode(in, tree, size / 2, chains);
+                        childStarts[i] = chains.size() - children[i].getChains().size();
+                    }
+                    InternalNode node = InternalNode.withoutChains(size, children, tree);
+                    int count = in.getShort() & 0xFFFF;
+                    for (int i = 0; i < count; i++) {
+                        int numSubchains = in.getShort() & 0xFFFF;
+                        Set<Pair<Integer, Chain>> subchains = new HashSet<>();
+                        for (int j = 0; j < numSubchains; j++) {
+                            int octant = in.get();
+                            subchains.add(new Pair<>(octant, chains.get(childStarts[octant] + (in.getShort() & 0xFFFF))));
+                        }
+                        Chain chain = new Chain(subchains, node);
+                        node.getChains().add(chain);
+                        chains.add(chain);
+                    }
+                    return node;
+            }
+        }
+
+        private ByteBuffer view() {
+            return ByteBuffer.wrap(bytes);
+        }
+    }
+}
@@ -6,12 +6,17 @@ package org.terasology.fallingblocks;
 import org.joml.Vector3i;
 import org.terasology.engine.world.WorldProvider;
 import org.terasology.engine.world.block.Block;
+import org.terasology.engine.world.chunks.Chunk;
+import org.terasology.fallingblocks.node.BrickNode;
 import org.terasology.fallingblocks.node.EmptyNode;
 import org.terasology.fallingblocks.node.InternalNode;
 import org.terasology.fallingblocks.node.Node;
 import org.terasology.fallingblocks.node.SolidNode;
 import org.terasology.fallingblocks.node.UnloadedNode;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import static org.terasology.fallingblocks.Tree.CHUNK_NODE_SIZE;
 
 public final class TreeUtils {
@@ -26,54 +31,97 @@ public final class TreeUtils {
         return !block.isPenetrable();
     }
 
-    public static boolean[] extractChunkData(WorldProvider world, Vector3i pos) {
-        boolean[] data = new boolean[CHUNK_NODE_SIZE * CHUNK_NODE_SIZE * CHUNK_NODE_SIZE];
+    public static ChunkData extractChunkData(WorldProvider world, Vector3i pos) {
+        ChunkData data = new ChunkData();
         for (int x = 0; x < CHUNK_NODE_SIZE; x++) {
             for (int y = 0; y < CHUNK_NODE_SIZE; y++) {
                 for (int z = 0; z < CHUNK_NODE_SIZE; z++) {
-                    data[(x * CHUNK_NODE_SIZE + y) * CHUNK_NODE_SIZE + z] = isSolid(world.getBlock(pos.x + x, pos.y + y, pos.z + z));
+                    if (isSolid(world.getBlock(pos.x + x, pos.y + y, pos.z + z))) {
+                        data.set(x, y, z);
+                    }
                 }
             }
         }
-        return data;
+        return data.compact();
     }
 
     /**
-     * Produce a new node representing the given region.
+     * Like the version using the WorldProvider, but reading the block IDs straight from the chunk.
+     *
+     * @param yOffset The height of the bottom of the region within the chunk
      */
-    public static Node buildNode(Tree tree, boolean[] data, int size, Vector3i pos) {
-        if (size == 1) {
-            if (data[(pos.x * CHUNK_NODE_SIZE + pos.y) * CHUNK_NODE_SIZE + pos.z]) {
-                return new SolidNode(1, tree);
-            } else {
-                return EmptyNode.get(1, tree);
-            }
-        } else {
-            Node[] children = new Node[8];
-            boolean empty = true;
-            boolean solid = true;
-            int i = 0;
-            for (int cx = 0; cx < 2; cx++) {
-                for (int cy = 0; cy < 2; cy++) {
-                    for (int cz = 0; cz < 2; cz++) {
-                        children[i] = buildNode(tree, data, size / 2, new Vector3i(cx, cy, cz).mul(size / 2).add(pos));
-                        empty = empty && children[i] instanceof EmptyNode;
-                        solid = solid && children[i] instanceof SolidNode;
-                        i++;
+    public static ChunkData extractChunkData(Chunk chunk, int yOffset, SolidityTable solidity) {
+        ChunkData data = new ChunkData();
+        for (int x = 0; x < CHUNK_NODE_SIZE; x++) {
+            for (int y = 0; y < CHUNK_NODE_SIZE; y++) {
+                for (int z = 0; z < CHUNK_NODE_SIZE; z++) {
+                    if (solidity.isSolid(chunk.getBlockId(x, yOffset + y, z))) {
+                        data.set(x, y, z);
                     }
                 }
             }
-            if (empty) {
+        }
+        return data.compact();
+    }
+
+    /**
+     * Produce a new node representing the whole of a chunk-sized region.
+     */
+    public static Node buildNode(Tree tree, ChunkData data) {
+        if (data.isUniform()) {
+            return data.getUniformValue() ? new SolidNode(CHUNK_NODE_SIZE, tree) : EmptyNode.get(CHUNK_NODE_SIZE, tree);
+        }
+        return buildNode(tree, new ChunkSummary(data), CHUNK_NODE_SIZE, 0);
+    }
+
+    /**
+     * Produce a new node representing the given region.
+     *
+     * @param start The index in the data of the first block of the region (see ChunkData.index)
+     */
+    public static Node buildNode(Tree tree, ChunkSummary summary, int size, int start) {
+        return buildNode(tree, summary, size, start, null);
+    }
+
+    /**
+     * Like buildNode, but using the BrickNodes already produced by buildBricks where possible.
+     *
+     * @param bricks The BrickNodes, indexed by word of the data, or null to build them as they're needed
+     */
+    public static Node buildNode(Tree tree, ChunkSummary summary, int size, int start, Node[] bricks) {
+        switch (summary.uniformity(size, start)) {
+            case ChunkSummary.EMPTY:
                 return EmptyNode.get(size, tree);
-            } else if (solid) {
-                for (Node child : children) {
-                    // There are no references to these, but they still need to have their IDs in the IntPairSetHeaps revoked.
-                    ((SolidNode) child).getChain().inactivate(false);
-                }
+            case ChunkSummary.SOLID:
                 return new SolidNode(size, tree);
-            } else {
+            default:
+                if (size == BrickNode.SIZE) {
+                    return bricks != null ? bricks[start >>> 6] : new BrickNode(summary.getData().getWord(start >>> 6), tree);
+                }
+                Node[] children = new Node[8];
+                int childVolume = size * size * size / 8;
+                for (int i = 0; i < 8; i++) {
+                    children[i] = buildNode(tree, summary, size / 2, start + i * childVolume, bricks);
+                }
                 return new InternalNode(size, children, tree);
-            }
+        }
+    }
+
+    /**
+     * Produce the BrickNodes for all the mixed bricks in the given region, indexed by word of the data. Unlike the rest of
+     * building a node, this doesn't touch any of the tree's shared state, so different regions can be done on different threads.
+     */
+    public static void buildBricks(Tree tree, ChunkSummary summary, int size, int start, Node[] bricks) {
+        if (summary.uniformity(size, start) != ChunkSummary.MIXED) {
+            return;
+        }
+        if (size == BrickNode.SIZE) {
+            bricks[start >>> 6] = new BrickNode(summary.getData().getWord(start >>> 6), tree);
+            return;
+        }
+        int childVolume = size * size * size / 8;
+        for (int i = 0; i < 8; i++) {
+            buildBricks(tree, summary, size / 2, start + i * childVolume, bricks);
         }
     }
 
@@ -99,6 +147,79 @@ public final class TreeUtils {
         return new InternalNode(size, children, tree);
     }
 
+    /**
+     * Produce a new node that is all unloaded except for several preexisting nodes.
+     *
+     * @param nodes The nodes, and their positions relative to the new node
+     */
+    public static Node buildExpandedNode(Tree tree, List<Pair<Vector3i, Node>> nodes, int size) {
+        if (nodes.size() == 1) {
+            return buildExpandedNode(tree, nodes.get(0).b, nodes.get(0).a, size);
+        }
+        List<List<Pair<Vector3i, Node>>> octantNodes = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            octantNodes.add(new ArrayList<>());
+        }
+        for (Pair<Vector3i, Node> node : nodes) {
+            octantNodes.get(octantOfPosition(node.a, size)).add(new Pair<>(modVector(node.a, size / 2), node.b));
+        }
+        Node[] children = new Node[8];
+        for (int i = 0; i < 8; i++) {
+            if (octantNodes.get(i).isEmpty()) {
+                children[i] = new UnloadedNode(size / 2, tree);
+            } else {
+                children[i] = buildExpandedNode(tree, octantNodes.get(i), size / 2);
+            }
+        }
+        return new InternalNode(size, children, tree);
+    }
+
+    /**
+     * The index of the direction in DIRECTIONS.
+     */
+    public static int directionIndex(int direction) {
+        return direction > 0 ? 3 + Integer.numberOfTrailingZeros(direction) : 2 - Integer.numberOfTrailingZeros(-direction);
+    }
+
+    /**
+     * The first of the two axes (as the positive direction along it) used to index cells on the given face.
+     */
+    public static int faceAxisU(int side) {
+        return Math.abs(side) == 4 ? 2 : 4;
+    }
+
+    /**
+     * The second of the two axes used to index cells on the given face.
+     */
+    public static int faceAxisV(int side) {
+        return Math.abs(side) == 1 ? 2 : 1;
+    }
+
+    /**
+     * The bit for a cell in a face mask, given its coordinates along faceAxisU and faceAxisV, each from 0 to 3.
+     */
+    public static int faceCell(int u, int v) {
+        return u * 4 + v;
+    }
+
+    /**
+     * Convert the face mask of a chain in the given octant into the corresponding cells of its parent's face mask. Each
+     * 2x2 block of cells in the child becomes one cell in the quadrant of the parent's face that the octant occupies.
+     */
+    public static int faceMaskToParent(int mask, int octant, int side) {
+        int uOffset = (octant & faceAxisU(side)) != 0 ? 2 : 0;
+        int vOffset = (octant & faceAxisV(side)) != 0 ? 2 : 0;
+        int result = 0;
+        for (int u = 0; u < 2; u++) {
+            for (int v = 0; v < 2; v++) {
+                if ((mask & (0x33 << faceCell(2 * u, 2 * v))) != 0) {
+                    result |= 1 << faceCell(u + uOffset, v + vOffset);
+                }
+            }
+        }
+        return result;
+    }
+
     /**
      * Is the octant with the given index in the further side-wards half
      */
@@ -168,6 +289,26 @@ public final class TreeUtils {
                 isOctantOnSide(octant, 1) ? size : 0);
     }
 
+    /**
+     * Pack integer coordinates (of bricks or slices, say) into a single long, 21 bits each, for use as a key. Each coordinate must
+     * fit in 21 bits as a signed number.
+     */
+    public static long packCoordinates(int x, int y, int z) {
+        return ((long) (x & 0x1FFFFF) << 42) | ((long) (y & 0x1FFFFF) << 21) | (z & 0x1FFFFF);
+    }
+
+    public static int unpackX(long key) {
+        return (int) (key << 1 >> 43);
+    }
+
+    public static int unpackY(long key) {
+        return (int) (key << 22 >> 43);
+    }
+
+    public static int unpackZ(long key) {
+        return (int) (key << 43 >> 43);
+    }
+
     public static void assrt(boolean valid) {
         if (!valid) {
             throw new AssertionError();
@@ -5,6 +5,8 @@ package org.terasology.fallingblocks.arrays;
 
 import org.terasology.fallingblocks.Pair;
 
+import java.util.Arrays;
+
 /**
  * An extendable list of pairs of an int and an object. Despite the name, this behaves differently from ArrayList when `set` is called
  * outside the current range. This class will simply expand the range to match, as that's what's most useful here.
@@ -84,6 +86,40 @@ public class IntPairArrayList<T> {
         bs[i] = x.b;
     }
 
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Copy a range of elements within the list, as System.arraycopy.
+     */
+    public void copy(int from, int to, int length) {
+        if (from < 0 || to < 0 || from + length > size) {
+            throw new ArrayIndexOutOfBoundsException(from + length - 1);
+        }
+        if (to + length > size) {
+            expandToInclude(to + length - 1);
+        }
+        System.arraycopy(as, from, as, to, length);
+        System.arraycopy(bs, from, bs, to, length);
+    }
+
+    /**
+     * Discard all the elements from newSize onwards, and release the backing storage if much of it is now unused.
+     */
+    public void truncate(int newSize) {
+        if (newSize >= size) {
+            return;
+        }
+        Arrays.fill(bs, newSize, size, null);
+        size = newSize;
+        if (as.length > 16 && as.length > size * EXPANSION_FACTOR * EXPANSION_FACTOR) {
+            int arraySize = Math.max(16, (int) (size * EXPANSION_FACTOR));
+            as = Arrays.copyOf(as, arraySize);
+            bs = Arrays.copyOf(bs, arraySize);
+        }
+    }
+
     private void expandToInclude(int i) {
         size = i + 1;
         if (size > as.length) {
@@ -6,11 +6,16 @@ package org.terasology.fallingblocks.arrays;
 import org.terasology.fallingblocks.Pair;
 
 import java.util.Iterator;
+import java.util.NoSuchElementException;
 
 /**
  * A set of sets of int-object-pairs, where each of the (outer) sets has a fixed int label.
  */
 public class IntPairSetHeap<T> {
+    // Compaction is only worthwhile once the storage is reasonably large and mostly unused.
+    private static final int MIN_COMPACTION_BINS = 1024;
+    private static final int MIN_OCCUPANCY_DENOMINATOR = 4;
+
     private final IntPairArrayList<T> list = new IntPairArrayList<>();
     private final SpaceTracker spaceTracker = new SpaceTracker();
     private final int binSize;
@@ -20,13 +25,30 @@ public class IntPairSetHeap<T> {
     }
 
     public int allocate() {
+        return allocate(null);
+    }
+
+    /**
+     * Allocate a new empty set. The owner is told if the key changes due to compaction.
+     */
+    public int allocate(Owner owner) {
+        int key = allocateBin();
+        setOwner(key, owner);
+        return key;
+    }
+
+    private int allocateBin() {
         int key = spaceTracker.next();
         setSize(key, 0);
         setNext(key, -1);
+        setOwner(key, null);
         return key;
     }
 
     public void remove(int key) {
+        if (key != -1) {
+            setOwner(key, null);
+        }
         for (int binIndex = key; binIndex != -1; binIndex = getNext(binIndex)) {
             spaceTracker.remove(binIndex);
             for (int i = 0; i < binSize; i++) {
@@ -35,6 +57,50 @@ public class IntPairSetHeap<T> {
         }
     }
 
+    /**
+     * Compact the storage if it's large and few of the bins are in use.
+     *
+     * @return Whether compaction happened
+     */
+    public boolean compactIfSparse() {
+        int bins = list.size() / (binSize + 2);
+        if (bins >= MIN_COMPACTION_BINS && spaceTracker.count() * MIN_OCCUPANCY_DENOMINATOR < bins) {
+            compact();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Move all the bins in use to the start of the storage, preserving their order, and release the rest. The owners
+     * of any sets that move are notified of their new keys. This invalidates any iterators or cursors in progress.
+     */
+    public void compact() {
+        int bins = list.size() / (binSize + 2);
+        int newBin = 0;
+        for (int oldBin = 0; oldBin < bins; oldBin++) {
+            if (!spaceTracker.contains(oldBin)) {
+                continue;
+            }
+            // Bins only ever move down, and the bins in use keep their order, so this never overwrites a bin that
+            // hasn't been moved yet.
+            if (newBin != oldBin) {
+                list.copy(oldBin * (binSize + 2), newBin * (binSize + 2), binSize + 2);
+            }
+            int next = getNext(newBin);
+            if (next != -1) {
+                setNext(newBin, spaceTracker.rank(next));
+            }
+            Owner owner = getOwner(newBin);
+            if (owner != null && newBin != oldBin) {
+                owner.moved(this, oldBin, newBin);
+            }
+            newBin++;
+        }
+        spaceTracker.reset(newBin);
+        list.truncate(newBin * (binSize + 2));
+    }
+
     public void remove(int key, int i) {
         int oldSize = getSize(key);
         int newSize = oldSize - 1;
@@ -54,6 +120,49 @@ public class IntPairSetHeap<T> {
         }
     }
 
+    /**
+     * Remove all the elements of one of the sets that match the filter, in a single pass through its bins. The remaining
+     * elements keep their order. The filter may modify other sets, but not this one.
+     *
+     * @return Whether anything was removed
+     */
+    public boolean removeIf(int key, Filter<T> filter) {
+        int oldSize = getSize(key);
+        int newSize = 0;
+        int writeBin = key;
+        int writePosition = 0;
+        Cursor cursor = cursor(key);
+        while (cursor.hasNext()) {
+            cursor.next();
+            if (filter.test(cursor.getA(), cursor.getB())) {
+                continue;
+            }
+            // The elements kept are only ever moved down, so this never overwrites one that hasn't been read yet.
+            if (writePosition == binSize) {
+                writeBin = getNext(writeBin);
+                writePosition = 0;
+            }
+            list.set(writeBin * (binSize + 2) + writePosition, cursor.getA(), cursor.getB());
+            writePosition++;
+            newSize++;
+        }
+        if (newSize == oldSize) {
+            return false;
+        }
+        for (int i = writePosition; i < binSize; i++) {
+            list.set(writeBin * (binSize + 2) + i, 0, null); // Make sure the objects can be garbage-collected.
+        }
+        for (int binIndex = getNext(writeBin); binIndex != -1; binIndex = getNext(binIndex)) {
+            spaceTracker.remove(binIndex);
+            for (int i = 0; i < binSize; i++) {
+                list.set(binIndex * (binSize + 2) + i, 0, null);
+            }
+        }
+        setNext(writeBin, -1);
+        setSize(key, newSize);
+        return true;
+    }
+
     /**
      * Increase the size of one of the sets by n.
      *
@@ -69,7 +178,7 @@ public class IntPairSetHeap<T> {
             for (int i = 0; i < (newSize - 1) / binSize; i++) {
                 int nextBin = getNext(binIndex);
                 if (nextBin == -1) {
-                    nextBin = allocate();
+                    nextBin = allocateBin();
                     setNext(binIndex, nextBin);
                 }
                 binIndex = nextBin;
@@ -121,6 +230,16 @@ public class IntPairSetHeap<T> {
         list.setA((key + 1) * (binSize + 2) - 1, size);
     }
 
+    private Owner getOwner(int key) {
+        return (Owner) list.getB((key + 1) * (binSize + 2) - 1);
+    }
+
+    // The object half of the size slot is otherwise unused, so the first bin of each set records its owner there.
+    @SuppressWarnings("unchecked") // It's never read back as a T.
+    private void setOwner(int key, Owner owner) {
+        list.setB((key + 1) * (binSize + 2) - 1, (T) owner);
+    }
+
     private int getNext(int key) {
         return list.getA((key + 1) * (binSize + 2) - 2);
     }
@@ -144,10 +263,90 @@ public class IntPairSetHeap<T> {
         return binIndex * (binSize + 2) + positionWithinBin;
     }
 
+    /**
+     * Something that holds the key of one of the sets, and needs to know when it changes.
+     */
+    public interface Owner {
+        void moved(IntPairSetHeap<?> heap, int oldKey, int newKey);
+    }
+
+    /**
+     * A test of an element of one of the sets, for removeIf.
+     */
+    public interface Filter<T> {
+        boolean test(int a, T b);
+    }
+
     public IntPairSetIterator iterator(int key) {
         return this.new IntPairSetIterator(key);
     }
 
+    /**
+     * Like iterator, but without allocating anything per element.
+     */
+    public Cursor cursor(int key) {
+        return this.new Cursor(key);
+    }
+
+    /**
+     * Steps through one of the sets, exposing the current element through getA and getB rather than as a Pair.
+     * Use as {@code while (cursor.hasNext()) { cursor.next(); ... }}.
+     */
+    public class Cursor {
+        private int currentAddress;
+        private int remainingSize;
+        private int a;
+        private T b;
+
+        protected Cursor(int key) {
+            start(key);
+        }
+
+        /**
+         * Start again from the beginning of the given set, so that one cursor can be reused for several sets.
+         */
+        public void reset(int key) {
+            start(key);
+        }
+
+        private void start(int key) {
+            if (key == -1) {
+                remainingSize = 0;
+            } else {
+                currentAddress = key * (binSize + 2);
+                remainingSize = getSize(key);
+            }
+        }
+
+        public boolean hasNext() {
+            return remainingSize > 0;
+        }
+
+        /**
+         * Move on to the next element.
+         */
+        public void next() {
+            if (remainingSize <= 0) {
+                throw new NoSuchElementException();
+            }
+            a = list.getA(currentAddress);
+            b = list.getB(currentAddress);
+            currentAddress++;
+            if (currentAddress % (binSize + 2) == binSize) {
+                currentAddress = list.getA(currentAddress) * (binSize + 2);
+            }
+            remainingSize--;
+        }
+
+        public int getA() {
+            return a;
+        }
+
+        public T getB() {
+            return b;
+        }
+    }
+
     protected class IntPairSetIterator implements Iterator<Pair<Integer, T>>, Iterable<Pair<Integer, T>> {
         private int key;
         private int currentAddress;
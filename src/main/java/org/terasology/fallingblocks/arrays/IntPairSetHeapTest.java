@@ -28,12 +28,27 @@ public class IntPairSetHeapTest<T> extends IntPairSetHeap<T> {
     }
 
     @Override
-    public int allocate() {
-        int key = internal.allocate();
+    public int allocate(Owner owner) {
+        int key = internal.allocate((heap, oldKey, newKey) -> {
+            records.put(newKey, records.remove(oldKey));
+            if (owner != null) {
+                owner.moved(this, oldKey, newKey);
+            }
+        });
         records.put(key, new ArrayList<>());
         return key;
     }
 
+    @Override
+    public boolean compactIfSparse() {
+        return internal.compactIfSparse();
+    }
+
+    @Override
+    public void compact() {
+        internal.compact();
+    }
+
     @Override
     public void remove(int key) {
         internal.remove(key);
@@ -48,6 +63,29 @@ public class IntPairSetHeapTest<T> extends IntPairSetHeap<T> {
         record.remove(record.size() - 1);
     }
 
+    @Override
+    public boolean removeIf(int key, Filter<T> filter) {
+        // The filter may have side-effects, so it's only run once, and its decisions applied to the reference list too.
+        ArrayList<Boolean> decisions = new ArrayList<>();
+        boolean internalResult = internal.removeIf(key, (a, b) -> {
+            boolean decision = filter.test(a, b);
+            decisions.add(decision);
+            return decision;
+        });
+        ArrayList<Pair<Integer, T>> record = records.get(key);
+        TreeUtils.assrt(decisions.size() == record.size());
+        ArrayList<Pair<Integer, T>> remaining = new ArrayList<>();
+        for (int i = 0; i < record.size(); i++) {
+            if (!decisions.get(i)) {
+                remaining.add(record.get(i));
+            }
+        }
+        records.put(key, remaining);
+        boolean result = remaining.size() != record.size();
+        TreeUtils.assrt(internalResult == result);
+        return result;
+    }
+
     @Override
     public int expand(int key, int n) {
         int internalSize = internal.expand(key, n);
@@ -113,6 +151,64 @@ public class IntPairSetHeapTest<T> extends IntPairSetHeap<T> {
         return this.new IntPairSetIteratorTest(key);
     }
 
+    @Override
+    public Cursor cursor(int key) {
+        return this.new CursorTest(key);
+    }
+
+    private class CursorTest extends Cursor {
+        Cursor internalCursor;
+        Iterator<Pair<Integer, T>> reference;
+        Pair<Integer, T> expected;
+
+        CursorTest(int key) {
+            super(-1);
+            internalCursor = internal.cursor(key);
+            resetReference(key);
+        }
+
+        @Override
+        public void reset(int key) {
+            internalCursor.reset(key);
+            resetReference(key);
+        }
+
+        private void resetReference(int key) {
+            if (key == -1) {
+                reference = Collections.emptyIterator();
+            } else {
+                reference = records.get(key).iterator();
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            boolean result = internalCursor.hasNext();
+            TreeUtils.assrt(result == reference.hasNext());
+            return result;
+        }
+
+        @Override
+        public void next() {
+            internalCursor.next();
+            expected = reference.next();
+        }
+
+        @Override
+        public int getA() {
+            int result = internalCursor.getA();
+            TreeUtils.assrt(result == expected.a);
+            return result;
+        }
+
+        @Override
+        public T getB() {
+            T result = internalCursor.getB();
+            TreeUtils.assrt(result == expected.b);
+            return result;
+        }
+    }
+
     private class IntPairSetIteratorTest extends IntPairSetIterator {
         IntPairSetIterator internalIterator;
         Iterator<Pair<Integer, T>> reference;
@@ -3,41 +3,130 @@
 
 package org.terasology.fallingblocks.arrays;
 
-import java.util.SortedSet;
-import java.util.TreeSet;
+import java.util.Arrays;
 
 /**
  * A finite set of natural numbers optimised for finding the lowest non-member.
+ *
+ * Membership is stored as a bitmap, with a second-level summary recording which words of the bitmap are full, so
+ * the lowest non-member can be found with a couple of numberOfTrailingZeros calls and no boxing.
  */
 public class SpaceTracker {
-    // The represented set is [0..max) \ missing
-    private int max = 0;
-    private SortedSet<Integer> missing = new TreeSet<>();
+    // Bit n % 64 of members[n / 64] is set iff n is in the set.
+    private long[] members = new long[1];
+    // Bit i % 64 of full[i / 64] is set iff members[i] has every bit set.
+    private long[] full = new long[1];
+    // No word of full before this index has a clear bit.
+    private int hint = 0;
+    private int count = 0;
+    // ranks[i] is the number of members below 64 * i, valid only while ranksValid.
+    private int[] ranks = new int[0];
+    private boolean ranksValid = false;
 
     public SpaceTracker() {
     }
 
     public void add(int n) {
-        if (n >= max) {
-            for (int i = max; i < n; i++) {
-                missing.add(i);
-            }
-            max = n + 1;
-        } else {
-            missing.remove(n);
+        int word = n >>> 6;
+        if (word >= members.length) {
+            grow(word);
+        }
+        long bit = 1L << n;
+        if ((members[word] & bit) != 0) {
+            return;
+        }
+        members[word] |= bit;
+        count++;
+        ranksValid = false;
+        if (members[word] == -1L) {
+            full[word >>> 6] |= 1L << word;
         }
     }
 
     public void remove(int n) {
-        missing.add(n);
+        int word = n >>> 6;
+        if (word >= members.length) {
+            return;
+        }
+        long bit = 1L << n;
+        if ((members[word] & bit) == 0) {
+            return;
+        }
+        members[word] &= ~bit;
+        count--;
+        ranksValid = false;
+        full[word >>> 6] &= ~(1L << word);
+        if (word >>> 6 < hint) {
+            hint = word >>> 6;
+        }
+    }
+
+    public boolean contains(int n) {
+        int word = n >>> 6;
+        return word < members.length && (members[word] & (1L << n)) != 0;
+    }
+
+    /**
+     * @return The number of members of the set
+     */
+    public int count() {
+        return count;
+    }
+
+    /**
+     * The number of members less than n, so that the members are numbered 0, 1, 2 ... in increasing order. This is
+     * fast for repeated calls as long as the set isn't changed in between.
+     */
+    public int rank(int n) {
+        int word = n >>> 6;
+        if (word >= members.length) {
+            return count;
+        }
+        if (!ranksValid) {
+            if (ranks.length != members.length) {
+                ranks = new int[members.length];
+            }
+            int total = 0;
+            for (int i = 0; i < members.length; i++) {
+                ranks[i] = total;
+                total += Long.bitCount(members[i]);
+            }
+            ranksValid = true;
+        }
+        return ranks[word] + Long.bitCount(members[word] & ((1L << n) - 1));
+    }
+
+    /**
+     * Replace the contents of the set with [0..count), discarding any unneeded space.
+     */
+    public void reset(int newCount) {
+        int length = Math.max(1, (newCount + 63) >>> 6);
+        members = new long[length];
+        full = new long[(length + 63) >>> 6];
+        for (int i = 0; i < newCount >>> 6; i++) {
+            members[i] = -1L;
+            full[i >>> 6] |= 1L << i;
+        }
+        if ((newCount & 63) != 0) {
+            members[newCount >>> 6] = (1L << newCount) - 1;
+        }
+        count = newCount;
+        hint = 0;
+        ranksValid = false;
     }
 
     public int peek() {
-        if (!missing.isEmpty()) {
-            return missing.first();
-        } else {
-            return max;
+        while (hint < full.length && full[hint] == -1L) {
+            hint++;
+        }
+        if (hint == full.length) {
+            return members.length << 6;
         }
+        int word = (hint << 6) + Long.numberOfTrailingZeros(~full[hint]);
+        if (word >= members.length) {
+            return members.length << 6;
+        }
+        return (word << 6) + Long.numberOfTrailingZeros(~members[word]);
     }
 
     public int next() {
@@ -45,4 +134,10 @@ public class SpaceTracker {
         add(n);
         return n;
     }
+
+    private void grow(int word) {
+        int length = Math.max(members.length * 2, word + 1);
+        members = Arrays.copyOf(members, length);
+        full = Arrays.copyOf(full, (length + 63) >>> 6);
+    }
 }
@@ -0,0 +1,65 @@
+// Copyright 2021 The Terasology Foundation
+// SPDX-License-Identifier: Apache-2.0
+
+package org.terasology.fallingblocks.arrays;
+
+/**
+ * A disjoint-set forest over the integers [0..n). The storage is reused between calls to `reset`, so that the same
+ * instance can be used repeatedly without allocating.
+ */
+public class UnionFind {
+    private int[] parents = new int[16];
+    private int size;
+    private int components;
+
+    public UnionFind() {
+    }
+
+    /**
+     * Start again with n singleton sets.
+     */
+    public void reset(int n) {
+        if (n > parents.length) {
+            parents = new int[Math.max(n, parents.length * 2)];
+        }
+        for (int i = 0; i < n; i++) {
+            parents[i] = i;
+        }
+        size = n;
+        components = n;
+    }
+
+    public int find(int i) {
+        if (i < 0 || i >= size) {
+            throw new ArrayIndexOutOfBoundsException(i);
+        }
+        int current = i;
+        while (parents[current] != current) {
+            // Path halving
+            parents[current] = parents[parents[current]];
+            current = parents[current];
+        }
+        return current;
+    }
+
+    /**
+     * @return Whether the two were previously in different sets.
+     */
+    public boolean union(int i, int j) {
+        int rootI = find(i);
+        int rootJ = find(j);
+        if (rootI == rootJ) {
+            return false;
+        }
+        parents[rootI] = rootJ;
+        components--;
+        return true;
+    }
+
+    /**
+     * The number of separate sets.
+     */
+    public int count() {
+        return components;
+    }
+}
@@ -0,0 +1,311 @@
+// Copyright 2021 The Terasology Foundation
+// SPDX-License-Identifier: Apache-2.0
+
+package org.terasology.fallingblocks.graph;
+
+import org.joml.Vector3i;
+import org.terasology.fallingblocks.BrickUtils;
+import org.terasology.fallingblocks.ChunkData;
+import org.terasology.fallingblocks.Tree;
+import org.terasology.fallingblocks.TreeUtils;
+import org.terasology.fallingblocks.arrays.SpaceTracker;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.terasology.fallingblocks.TreeUtils.packCoordinates;
+import static org.terasology.fallingblocks.TreeUtils.unpackX;
+import static org.terasology.fallingblocks.TreeUtils.unpackY;
+import static org.terasology.fallingblocks.TreeUtils.unpackZ;
+
+/**
+ * An alternative to the octree, tracking connectivity with a fully-dynamic connectivity structure rather than a hierarchy of chains.
+ * <p>
+ * The loaded world is divided into 4x4x4 bricks, and the vertices of the graph are the connected components of solid blocks within
+ * each brick. There is an edge between two components in adjacent bricks if they touch, and an edge to a single ground vertex from
+ * any component on the boundary of an unloaded region. A group of blocks is detached exactly when its vertices aren't connected to
+ * the ground.
+ */
+public class BlockGraph {
+    private static final int GROUND = 0;
+    private static final int BRICKS_PER_SLICE = Tree.CHUNK_NODE_SIZE / BrickUtils.SIZE;
+
+    private final DynamicConnectivity connectivity = new DynamicConnectivity();
+    private final Set<Long> loadedSlices = new HashSet<>();
+    private final Map<Long, Brick> bricks = new HashMap<>();
+    private final SpaceTracker vertexIds = new SpaceTracker();
+    // For each vertex, the brick it's in and the blocks in that brick it consists of.
+    private long[] vertexBricks = new long[16];
+    private long[] vertexBlocks = new long[16];
+    // The bricks that may contain newly detached blocks, since the last call to takeDetached.
+    private final Set<Long> candidates = new HashSet<>();
+
+    private static final class Brick {
+        final long blocks;
+        final int[] vertices;
+
+        Brick(long blocks, int[] vertices) {
+            this.blocks = blocks;
+            this.vertices = vertices;
+        }
+    }
+
+    public BlockGraph() {
+        vertexIds.add(GROUND);
+    }
+
+    public void loadSlice(ChunkData data, Vector3i pos) {
+        int sx = Math.floorDiv(pos.x, Tree.CHUNK_NODE_SIZE);
+        int sy = Math.floorDiv(pos.y, Tree.CHUNK_NODE_SIZE);
+        int sz = Math.floorDiv(pos.z, Tree.CHUNK_NODE_SIZE);
+        loadedSlices.add(packCoordinates(sx, sy, sz));
+        List<Long> added = new ArrayList<>();
+        for (int x = 0; x < BRICKS_PER_SLICE; x++) {
+            for (int y = 0; y < BRICKS_PER_SLICE; y++) {
+                for (int z = 0; z < BRICKS_PER_SLICE; z++) {
+                    long blocks = data.getWord(ChunkData.index(x * BrickUtils.SIZE, y * BrickUtils.SIZE, z * BrickUtils.SIZE) >>> 6);
+                    if (blocks != 0) {
+                        long brickKey = packCoordinates(sx * BRICKS_PER_SLICE + x, sy * BRICKS_PER_SLICE + y,
+                                sz * BRICKS_PER_SLICE + z);
+                        bricks.put(brickKey, createBrick(brickKey, blocks));
+                        added.add(brickKey);
+                    }
+                }
+            }
+        }
+        for (long brickKey : added) {
+            connectToNeighbours(brickKey, bricks.get(brickKey));
+        }
+        for (long brickKey : added) {
+            refreshGround(brickKey, bricks.get(brickKey));
+        }
+        candidates.addAll(added);
+        // Some of the neighbouring bricks may have been supported only by this slice not being loaded.
+        candidates.addAll(refreshSliceBoundaries(sx, sy, sz));
+    }
+
+    public void unloadSlice(Vector3i pos) {
+        int sx = Math.floorDiv(pos.x, Tree.CHUNK_NODE_SIZE);
+        int sy = Math.floorDiv(pos.y, Tree.CHUNK_NODE_SIZE);
+        int sz = Math.floorDiv(pos.z, Tree.CHUNK_NODE_SIZE);
+        if (!loadedSlices.remove(packCoordinates(sx, sy, sz))) {
+            return;
+        }
+        // The neighbours are grounded first, so that removing this slice's bricks can't split anything.
+        refreshSliceBoundaries(sx, sy, sz);
+        for (int x = 0; x < BRICKS_PER_SLICE; x++) {
+            for (int y = 0; y < BRICKS_PER_SLICE; y++) {
+                for (int z = 0; z < BRICKS_PER_SLICE; z++) {
+                    Brick brick = bricks.remove(packCoordinates(sx * BRICKS_PER_SLICE + x, sy * BRICKS_PER_SLICE + y,
+                            sz * BRICKS_PER_SLICE + z));
+                    if (brick != null) {
+                        releaseBrick(brick);
+                    }
+                }
+            }
+        }
+    }
+
+    public void setBlock(Vector3i pos, boolean solid) {
+        int bx = pos.x >> 2;
+        int by = pos.y >> 2;
+        int bz = pos.z >> 2;
+        if (!loadedSlices.contains(packCoordinates(Math.floorDiv(pos.x, Tree.CHUNK_NODE_SIZE),
+                Math.floorDiv(pos.y, Tree.CHUNK_NODE_SIZE), Math.floorDiv(pos.z, Tree.CHUNK_NODE_SIZE)))) {
+            return;
+        }
+        long brickKey = packCoordinates(bx, by, bz);
+        Brick oldBrick = bricks.get(brickKey);
+        long oldBlocks = oldBrick == null ? 0 : oldBrick.blocks;
+        long bit = 1L << BrickUtils.index(pos.x & 3, pos.y & 3, pos.z & 3);
+        long newBlocks = solid ? oldBlocks | bit : oldBlocks & ~bit;
+        if (newBlocks == oldBlocks) {
+            return;
+        }
+        // The edges of the new components are added before the old ones are removed, so that the rest of the graph is never
+        // temporarily split by the change.
+        Brick newBrick = newBlocks == 0 ? null : createBrick(brickKey, newBlocks);
+        if (newBrick != null) {
+            bricks.put(brickKey, newBrick);
+            connectToNeighbours(brickKey, newBrick);
+            refreshGround(brickKey, newBrick);
+        } else {
+            bricks.remove(brickKey);
+        }
+        if (oldBrick != null) {
+            releaseBrick(oldBrick);
+        }
+        candidates.add(brickKey);
+        for (int direction : TreeUtils.DIRECTIONS) {
+            candidates.add(neighbour(brickKey, direction));
+        }
+    }
+
+    /**
+     * Find all the groups of blocks that have become detached since the last call.
+     */
+    public List<Set<Vector3i>> takeDetached() {
+        List<Set<Vector3i>> result = new ArrayList<>();
+        Set<Integer> seen = new HashSet<>();
+        for (long brickKey : candidates) {
+            Brick brick = bricks.get(brickKey);
+            if (brick == null) {
+                continue;
+            }
+            for (int vertex : brick.vertices) {
+                if (seen.contains(vertex) || connectivity.connected(vertex, GROUND)) {
+                    continue;
+                }
+                Set<Vector3i> positions = new HashSet<>();
+                for (int member : connectivity.component(vertex)) {
+                    seen.add(member);
+                    addPositions(member, positions);
+                }
+                result.add(positions);
+            }
+        }
+        candidates.clear();
+        return result;
+    }
+
+    /**
+     * Check that the vertices match the contents of the bricks.
+     */
+    public void validate() {
+        for (Map.Entry<Long, Brick> entry : bricks.entrySet()) {
+            Brick brick = entry.getValue();
+            long covered = 0;
+            for (int vertex : brick.vertices) {
+                long blocks = vertexBlocks[vertex];
+                TreeUtils.assrt(vertexIds.contains(vertex));
+                TreeUtils.assrt(vertexBricks[vertex] == entry.getKey());
+                TreeUtils.assrt((covered & blocks) == 0);
+                TreeUtils.assrt(BrickUtils.component(blocks, Long.lowestOneBit(blocks)) == blocks);
+                covered |= blocks;
+            }
+            TreeUtils.assrt(covered == brick.blocks);
+        }
+    }
+
+    private Brick createBrick(long brickKey, long blocks) {
+        List<Integer> vertices = new ArrayList<>();
+        for (long remaining = blocks; remaining != 0; ) {
+            long component = BrickUtils.component(remaining, Long.lowestOneBit(remaining));
+            remaining &= ~component;
+            int vertex = vertexIds.next();
+            if (vertex >= vertexBricks.length) {
+                vertexBricks = Arrays.copyOf(vertexBricks, vertexBricks.length * 2);
+                vertexBlocks = Arrays.copyOf(vertexBlocks, vertexBlocks.length * 2);
+            }
+            vertexBricks[vertex] = brickKey;
+            vertexBlocks[vertex] = component;
+            vertices.add(vertex);
+        }
+        int[] result = new int[vertices.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = vertices.get(i);
+        }
+        return new Brick(blocks, result);
+    }
+
+    private void releaseBrick(Brick brick) {
+        for (int vertex : brick.vertices) {
+            connectivity.removeVertex(vertex);
+            vertexIds.remove(vertex);
+        }
+    }
+
+    private void connectToNeighbours(long brickKey, Brick brick) {
+        for (int direction : TreeUtils.DIRECTIONS) {
+            Brick other = bricks.get(neighbour(brickKey, direction));
+            if (other == null) {
+                continue;
+            }
+            for (int vertex : brick.vertices) {
+                for (int otherVertex : other.vertices) {
+                    if (BrickUtils.isTouching(vertexBlocks[vertex], vertexBlocks[otherVertex], direction)) {
+                        connectivity.addEdge(vertex, otherVertex);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Connect the components of the brick to the ground if and only if they're next to an unloaded slice.
+     */
+    private void refreshGround(long brickKey, Brick brick) {
+        for (int vertex : brick.vertices) {
+            boolean grounded = false;
+            for (int direction : TreeUtils.DIRECTIONS) {
+                if (BrickUtils.isOnSide(vertexBlocks[vertex], direction) && !isLoaded(neighbour(brickKey, direction))) {
+                    grounded = true;
+                    break;
+                }
+            }
+            if (grounded) {
+                connectivity.addEdge(vertex, GROUND);
+            } else {
+                connectivity.removeEdge(vertex, GROUND);
+            }
+        }
+    }
+
+    /**
+     * Update the ground connections of the bricks in the neighbouring slices that are next to the given slice.
+     *
+     * @return The keys of those bricks
+     */
+    private List<Long> refreshSliceBoundaries(int sx, int sy, int sz) {
+        List<Long> result = new ArrayList<>();
+        for (int direction : TreeUtils.DIRECTIONS) {
+            int dx = direction == 4 ? 1 : direction == -4 ? -1 : 0;
+            int dy = direction == 2 ? 1 : direction == -2 ? -1 : 0;
+            int dz = direction == 1 ? 1 : direction == -1 ? -1 : 0;
+            // The layer of bricks in the neighbouring slice adjacent to this one.
+            int minX = dx > 0 ? (sx + 1) * BRICKS_PER_SLICE : dx < 0 ? sx * BRICKS_PER_SLICE - 1 : sx * BRICKS_PER_SLICE;
+            int minY = dy > 0 ? (sy + 1) * BRICKS_PER_SLICE : dy < 0 ? sy * BRICKS_PER_SLICE - 1 : sy * BRICKS_PER_SLICE;
+            int minZ = dz > 0 ? (sz + 1) * BRICKS_PER_SLICE : dz < 0 ? sz * BRICKS_PER_SLICE - 1 : sz * BRICKS_PER_SLICE;
+            int maxX = dx != 0 ? minX : minX + BRICKS_PER_SLICE - 1;
+            int maxY = dy != 0 ? minY : minY + BRICKS_PER_SLICE - 1;
+            int maxZ = dz != 0 ? minZ : minZ + BRICKS_PER_SLICE - 1;
+            for (int x = minX; x <= maxX; x++) {
+                for (int y = minY; y <= maxY; y++) {
+                    for (int z = minZ; z <= maxZ; z++) {
+                        long brickKey = packCoordinates(x, y, z);
+                        Brick brick = bricks.get(brickKey);
+                        if (brick != null) {
+                            refreshGround(brickKey, brick);
+                            result.add(brickKey);
+                        }
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    private boolean isLoaded(long brickKey) {
+        return loadedSlices.contains(packCoordinates(Math.floorDiv(unpackX(brickKey), BRICKS_PER_SLICE),
+                Math.floorDiv(unpackY(brickKey), BRICKS_PER_SLICE), Math.floorDiv(unpackZ(brickKey), BRICKS_PER_SLICE)));
+    }
+
+    private void addPositions(int vertex, Set<Vector3i> positions) {
+        long brickKey = vertexBricks[vertex];
+        Vector3i corner = new Vector3i(unpackX(brickKey), unpackY(brickKey), unpackZ(brickKey)).mul(BrickUtils.SIZE);
+        for (long remaining = vertexBlocks[vertex]; remaining != 0; remaining &= remaining - 1) {
+            positions.add(BrickUtils.position(Long.numberOfTrailingZeros(remaining)).add(corner));
+        }
+    }
+
+    private static long neighbour(long brickKey, int direction) {
+        return packCoordinates(unpackX(brickKey) + (direction == 4 ? 1 : direction == -4 ? -1 : 0),
+                unpackY(brickKey) + (direction == 2 ? 1 : direction == -2 ? -1 : 0),
+                unpackZ(brickKey) + (direction == 1 ? 1 : direction == -1 ? -1 : 0));
+    }
+}
@@ -0,0 +1,244 @@
+// Copyright 2021 The Terasology Foundation
+// SPDX-License-Identifier: Apache-2.0
+
+package org.terasology.fallingblocks.graph;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Fully-dynamic connectivity for an undirected graph on int vertices, following Holm, de Lichtenberg and Thorup. Adding and
+ * removing edges take amortised O(log^2 n), and connectivity queries O(log n).
+ * <p>
+ * Every edge has a level, starting at 0 and only ever increasing. Forest i is a spanning forest of the edges with level at least
+ * i, and each is a subforest of the one below. When a tree edge is removed, the smaller of the two halves has its tree edges
+ * moved up a level and its non-tree edges searched for a replacement, each unsuccessful candidate also being moved up. The trees
+ * at level i have at most n / 2^i vertices, which bounds the number of levels and so the total work per edge.
+ */
+public class DynamicConnectivity {
+    private final List<EulerTourForest> forests = new ArrayList<>();
+    private final Map<Long, Edge> edges = new HashMap<>();
+    private final Map<Integer, Vertex> vertices = new HashMap<>();
+
+    private static final class Edge {
+        final int u;
+        final int v;
+        int level;
+        boolean tree;
+        // The occurrences of this edge in each forest, if it's a tree edge.
+        EulerTourForest.Node[] uv = new EulerTourForest.Node[1];
+        EulerTourForest.Node[] vu = new EulerTourForest.Node[1];
+
+        Edge(int u, int v) {
+            this.u = u;
+            this.v = v;
+        }
+
+        int other(int x) {
+            return x == u ? v : u;
+        }
+    }
+
+    private static final class Vertex {
+        final Set<Edge> edges = new HashSet<>();
+        // The tree and non-tree edges at each level. Only the lists for levels that have been used exist.
+        final List<Set<Edge>> treeEdges = new ArrayList<>();
+        final List<Set<Edge>> nonTreeEdges = new ArrayList<>();
+
+        Set<Edge> treeEdges(int level) {
+            return atLevel(treeEdges, level);
+        }
+
+        Set<Edge> nonTreeEdges(int level) {
+            return atLevel(nonTreeEdges, level);
+        }
+
+        private static Set<Edge> atLevel(List<Set<Edge>> sets, int level) {
+            while (sets.size() <= level) {
+                sets.add(new HashSet<>());
+            }
+            return sets.get(level);
+        }
+    }
+
+    public boolean connected(int u, int v) {
+        return forests.isEmpty() ? u == v : forests.get(0).connected(u, v);
+    }
+
+    public boolean hasEdge(int u, int v) {
+        return edges.containsKey(key(u, v));
+    }
+
+    /**
+     * Add an edge between two different vertices, if there isn't one already.
+     */
+    public void addEdge(int u, int v) {
+        long key = key(u, v);
+        if (u == v || edges.containsKey(key)) {
+            return;
+        }
+        Edge edge = new Edge(u, v);
+        edges.put(key, edge);
+        vertex(u).edges.add(edge);
+        vertex(v).edges.add(edge);
+        if (!forest(0).connected(u, v)) {
+            link(edge, 0);
+            edge.tree = true;
+        }
+        addToLevel(edge);
+    }
+
+    /**
+     * Remove the edge between two vertices, if there is one.
+     *
+     * @return Whether this disconnected the vertices
+     */
+    public boolean removeEdge(int u, int v) {
+        Edge edge = edges.remove(key(u, v));
+        if (edge == null) {
+            return false;
+        }
+        vertex(u).edges.remove(edge);
+        vertex(v).edges.remove(edge);
+        removeFromLevel(edge);
+        if (!edge.tree) {
+            return false;
+        }
+        for (int i = 0; i <= edge.level; i++) {
+            forest(i).cut(edge.uv[i], edge.vu[i]);
+        }
+        for (int i = edge.level; i >= 0; i--) {
+            if (replace(u, v, i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Remove all of the edges of a vertex, and forget about it.
+     */
+    public void removeVertex(int v) {
+        Vertex vertex = vertices.get(v);
+        if (vertex == null) {
+            return;
+        }
+        for (Edge edge : new ArrayList<>(vertex.edges)) {
+            removeEdge(edge.u, edge.v);
+        }
+        vertices.remove(v);
+        for (EulerTourForest forest : forests) {
+            forest.remove(v);
+        }
+    }
+
+    /**
+     * All the vertices connected to v, including v itself.
+     */
+    public List<Integer> component(int v) {
+        List<Integer> result = new ArrayList<>();
+        if (forests.isEmpty()) {
+            result.add(v);
+        } else {
+            forests.get(0).collectVertices(v, result);
+        }
+        return result;
+    }
+
+    public int numEdges() {
+        return edges.size();
+    }
+
+    /**
+     * After a tree edge between u and v at level at least `level` has been removed, look for a replacement at that level among
+     * the non-tree edges of the smaller of the two trees, raising the levels of the edges in that tree as it goes.
+     *
+     * @return Whether a replacement was found
+     */
+    private boolean replace(int u, int v, int level) {
+        EulerTourForest forest = forest(level);
+        int small = forest.treeSize(u) <= forest.treeSize(v) ? u : v;
+
+        // All the tree edges of the smaller tree at this level can go up a level, as that tree is small enough.
+        List<Integer> flagged = new ArrayList<>();
+        forest.collectFlagged(small, false, flagged);
+        for (int x : flagged) {
+            for (Edge edge : new ArrayList<>(vertex(x).treeEdges(level))) {
+                removeFromLevel(edge);
+                edge.level++;
+                link(edge, edge.level);
+                addToLevel(edge);
+            }
+        }
+
+        flagged.clear();
+        forest.collectFlagged(small, true, flagged);
+        for (int x : flagged) {
+            for (Edge edge : new ArrayList<>(vertex(x).nonTreeEdges(level))) {
+                removeFromLevel(edge);
+                if (!forest.connected(edge.other(x), small)) {
+                    edge.tree = true;
+                    for (int i = 0; i <= level; i++) {
+                        link(edge, i);
+                    }
+                    addToLevel(edge);
+                    return true;
+                } else {
+                    edge.level++;
+                    addToLevel(edge);
+                }
+            }
+        }
+        return false;
+    }
+
+    private void link(Edge edge, int level) {
+        if (edge.uv.length <= level) {
+            edge.uv = Arrays.copyOf(edge.uv, level + 1);
+            edge.vu = Arrays.copyOf(edge.vu, level + 1);
+        }
+        EulerTourForest.Node[] nodes = forest(level).link(edge.u, edge.v);
+        edge.uv[level] = nodes[0];
+        edge.vu[level] = nodes[1];
+    }
+
+    private void addToLevel(Edge edge) {
+        for (int x : new int[]{edge.u, edge.v}) {
+            Vertex vertex = vertex(x);
+            (edge.tree ? vertex.treeEdges(edge.level) : vertex.nonTreeEdges(edge.level)).add(edge);
+            updateFlags(x, vertex, edge.level);
+        }
+    }
+
+    private void removeFromLevel(Edge edge) {
+        for (int x : new int[]{edge.u, edge.v}) {
+            Vertex vertex = vertex(x);
+            (edge.tree ? vertex.treeEdges(edge.level) : vertex.nonTreeEdges(edge.level)).remove(edge);
+            updateFlags(x, vertex, edge.level);
+        }
+    }
+
+    private void updateFlags(int x, Vertex vertex, int level) {
+        forest(level).setFlags(x, !vertex.treeEdges(level).isEmpty(), !vertex.nonTreeEdges(level).isEmpty());
+    }
+
+    private Vertex vertex(int v) {
+        return vertices.computeIfAbsent(v, k -> new Vertex());
+    }
+
+    private EulerTourForest forest(int level) {
+        while (forests.size() <= level) {
+            forests.add(new EulerTourForest());
+        }
+        return forests.get(level);
+    }
+
+    private static long key(int u, int v) {
+        return ((long) Math.min(u, v) << 32) | (Math.max(u, v) & 0xFFFFFFFFL);
+    }
+}
@@ -0,0 +1,177 @@
+// Copyright 2021 The Terasology Foundation
+// SPDX-License-Identifier: Apache-2.0
+
+package org.terasology.fallingblocks.graph;
+
+import org.terasology.fallingblocks.TreeUtils;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Check the behaviour of DynamicConnectivity, and the EulerTourForests it uses, against a plain adjacency list searched
+ * breadth-first. It can be used in place of a DynamicConnectivity, or exercised on its own with randomCheck and
+ * randomForestCheck.
+ */
+public class DynamicConnectivityTest extends DynamicConnectivity {
+    private final Map<Integer, Set<Integer>> adjacency = new HashMap<>();
+
+    @Override
+    public boolean connected(int u, int v) {
+        boolean result = super.connected(u, v);
+        TreeUtils.assrt(result == reachable(u).contains(v));
+        return result;
+    }
+
+    @Override
+    public boolean hasEdge(int u, int v) {
+        boolean result = super.hasEdge(u, v);
+        TreeUtils.assrt(result == adjacency.getOrDefault(u, new HashSet<>()).contains(v));
+        return result;
+    }
+
+    @Override
+    public void addEdge(int u, int v) {
+        super.addEdge(u, v);
+        if (u != v) {
+            adjacency.computeIfAbsent(u, k -> new HashSet<>()).add(v);
+            adjacency.computeIfAbsent(v, k -> new HashSet<>()).add(u);
+        }
+        TreeUtils.assrt(super.connected(u, v));
+    }
+
+    @Override
+    public boolean removeEdge(int u, int v) {
+        boolean result = super.removeEdge(u, v);
+        boolean existed = adjacency.getOrDefault(u, new HashSet<>()).remove(v);
+        adjacency.getOrDefault(v, new HashSet<>()).remove(u);
+        TreeUtils.assrt(result == (existed && !reachable(u).contains(v)));
+        TreeUtils.assrt(super.connected(u, v) == reachable(u).contains(v));
+        return result;
+    }
+
+    @Override
+    public void removeVertex(int v) {
+        super.removeVertex(v);
+        Set<Integer> neighbours = adjacency.remove(v);
+        if (neighbours != null) {
+            for (int neighbour : neighbours) {
+                adjacency.get(neighbour).remove(v);
+            }
+        }
+        TreeUtils.assrt(super.component(v).size() == 1);
+    }
+
+    @Override
+    public List<Integer> component(int v) {
+        List<Integer> result = super.component(v);
+        Set<Integer> expected = reachable(v);
+        TreeUtils.assrt(result.size() == expected.size() && expected.containsAll(result));
+        return result;
+    }
+
+    @Override
+    public int numEdges() {
+        int result = super.numEdges();
+        int expected = 0;
+        for (Set<Integer> neighbours : adjacency.values()) {
+            expected += neighbours.size();
+        }
+        TreeUtils.assrt(result * 2 == expected);
+        return result;
+    }
+
+    private Set<Integer> reachable(int v) {
+        Set<Integer> result = new HashSet<>();
+        Queue<Integer> queue = new ArrayDeque<>();
+        result.add(v);
+        queue.add(v);
+        while (!queue.isEmpty()) {
+            for (int neighbour : adjacency.getOrDefault(queue.remove(), new HashSet<>())) {
+                if (result.add(neighbour)) {
+                    queue.add(neighbour);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Apply a random sequence of edge additions and removals and vertex removals to a graph with the given number of vertices,
+     * checking every pair of vertices after each step.
+     */
+    public static void randomCheck(long seed, int numVertices, int steps) {
+        Random random = new Random(seed);
+        DynamicConnectivityTest graph = new DynamicConnectivityTest();
+        List<int[]> edges = new ArrayList<>();
+        for (int step = 0; step < steps; step++) {
+            int choice = random.nextInt(10);
+            if (choice < 5 || edges.isEmpty()) {
+                int u = random.nextInt(numVertices);
+                int v = random.nextInt(numVertices);
+                if (u != v && !graph.hasEdge(u, v)) {
+                    graph.addEdge(u, v);
+                    edges.add(new int[]{u, v});
+                }
+            } else if (choice < 9) {
+                int[] edge = edges.remove(random.nextInt(edges.size()));
+                graph.removeEdge(edge[0], edge[1]);
+            } else {
+                int v = random.nextInt(numVertices);
+                graph.removeVertex(v);
+                edges.removeIf(edge -> edge[0] == v || edge[1] == v);
+            }
+            graph.numEdges();
+            for (int u = 0; u < numVertices; u++) {
+                for (int v = u + 1; v < numVertices; v++) {
+                    graph.connected(u, v);
+                }
+            }
+        }
+    }
+
+    /**
+     * Apply a random sequence of links and cuts directly to an EulerTourForest with the given number of vertices, checking the
+     * connectivity and tree size of every vertex against the forest's edges after each step.
+     */
+    public static void randomForestCheck(long seed, int numVertices, int steps) {
+        Random random = new Random(seed);
+        EulerTourForest forest = new EulerTourForest();
+        DynamicConnectivityTest reference = new DynamicConnectivityTest();
+        List<int[]> edges = new ArrayList<>();
+        List<EulerTourForest.Node[]> occurrences = new ArrayList<>();
+        for (int step = 0; step < steps; step++) {
+            if (random.nextInt(3) < 2 || edges.isEmpty()) {
+                int u = random.nextInt(numVertices);
+                int v = random.nextInt(numVertices);
+                if (!reference.reachable(u).contains(v)) {
+                    occurrences.add(forest.link(u, v));
+                    edges.add(new int[]{u, v});
+                    reference.adjacency.computeIfAbsent(u, k -> new HashSet<>()).add(v);
+                    reference.adjacency.computeIfAbsent(v, k -> new HashSet<>()).add(u);
+                }
+            } else {
+                int i = random.nextInt(edges.size());
+                int[] edge = edges.remove(i);
+                EulerTourForest.Node[] nodes = occurrences.remove(i);
+                forest.cut(nodes[0], nodes[1]);
+                reference.adjacency.get(edge[0]).remove(edge[1]);
+                reference.adjacency.get(edge[1]).remove(edge[0]);
+            }
+            for (int u = 0; u < numVertices; u++) {
+                Set<Integer> expected = reference.reachable(u);
+                TreeUtils.assrt(forest.treeSize(u) == expected.size());
+                for (int v = u + 1; v < numVertices; v++) {
+                    TreeUtils.assrt(forest.connected(u, v) == expected.contains(v));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,285 @@
+// Copyright 2021 The Terasology Foundation
+// SPDX-License-Identifier: Apache-2.0
+
+package org.terasology.fallingblocks.graph;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A spanning forest stored as the Euler tours of its trees, each tour kept in a treap ordered by position. Linking, cutting and
+ * finding the tree containing a vertex all take expected O(log n).
+ * <p>
+ * Each vertex occurs once in its tour, and each tree edge twice (once for each direction), so a tree with k vertices has a tour of
+ * length 3k - 2. Vertex occurrences also carry two flags, which are aggregated over subtrees so that the flagged vertices of a tree
+ * can be found without looking at all of it. Vertices with no edges are only stored if they're flagged.
+ */
+final class EulerTourForest {
+    static final class Node {
+        Node left;
+        Node right;
+        Node parent;
+        final int priority;
+        int size = 1;
+        final int vertex; // -1 for the occurrences of edges
+        boolean hasTreeEdges;
+        boolean hasNonTreeEdges;
+        boolean subtreeHasTreeEdges;
+        boolean subtreeHasNonTreeEdges;
+
+        Node(int vertex, int priority) {
+            this.vertex = vertex;
+            this.priority = priority;
+        }
+    }
+
+    private final Map<Integer, Node> vertexNodes = new HashMap<>();
+    private int seed = 0x2545F491;
+
+    /**
+     * Whether the two vertices are in the same tree.
+     */
+    boolean connected(int u, int v) {
+        if (u == v) {
+            return true;
+        }
+        Node a = vertexNodes.get(u);
+        Node b = vertexNodes.get(v);
+        return a != null && b != null && root(a) == root(b);
+    }
+
+    /**
+     * The number of vertices in the tree containing v.
+     */
+    int treeSize(int v) {
+        Node node = vertexNodes.get(v);
+        return node == null ? 1 : (root(node).size + 2) / 3;
+    }
+
+    /**
+     * Join the trees containing u and v, which must be different, with an edge between them.
+     *
+     * @return The occurrences of the new edge, from u to v and from v to u
+     */
+    Node[] link(int u, int v) {
+        Node a = reroot(vertexNode(u));
+        Node b = reroot(vertexNode(v));
+        Node uv = new Node(-1, nextPriority());
+        Node vu = new Node(-1, nextPriority());
+        Node result = merge(merge(a, uv), merge(b, vu));
+        result.parent = null;
+        return new Node[]{uv, vu};
+    }
+
+    /**
+     * Remove the tree edge with the given occurrences, splitting its tree in two.
+     */
+    void cut(Node uv, Node vu) {
+        Node root = root(uv);
+        int i = index(uv);
+        int j = index(vu);
+        if (i > j) {
+            int t = i;
+            i = j;
+            j = t;
+        }
+        Node[] outer = split(root, i);
+        Node[] first = split(outer[1], 1);
+        Node[] inner = split(first[1], j - i - 1);
+        Node[] last = split(inner[1], 1);
+        if (inner[0] != null) {
+            inner[0].parent = null;
+        }
+        Node rest = merge(outer[0], last[1]);
+        if (rest != null) {
+            rest.parent = null;
+        }
+    }
+
+    void setFlags(int v, boolean hasTreeEdges, boolean hasNonTreeEdges) {
+        Node node = vertexNodes.get(v);
+        if (node == null) {
+            if (!hasTreeEdges && !hasNonTreeEdges) {
+                return;
+            }
+            node = vertexNode(v);
+        }
+        node.hasTreeEdges = hasTreeEdges;
+        node.hasNonTreeEdges = hasNonTreeEdges;
+        for (Node n = node; n != null; n = n.parent) {
+            update(n);
+        }
+        if (!hasTreeEdges && !hasNonTreeEdges && node.size == 1 && node.parent == null) {
+            vertexNodes.remove(v);
+        }
+    }
+
+    /**
+     * Forget about a vertex, which must not have any tree edges left.
+     */
+    void remove(int v) {
+        vertexNodes.remove(v);
+    }
+
+    /**
+     * Add the vertices in the tree containing v that have the given flag set to the list.
+     */
+    void collectFlagged(int v, boolean nonTree, List<Integer> result) {
+        Node node = vertexNodes.get(v);
+        if (node != null) {
+            collectFlagged(root(node), nonTree, result);
+        }
+    }
+
+    /**
+     * Add all the vertices in the tree containing v to the list.
+     */
+    void collectVertices(int v, List<Integer> result) {
+        Node node = vertexNodes.get(v);
+        if (node == null) {
+            result.add(v);
+        } else {
+            collectVertices(root(node), result);
+        }
+    }
+
+    private static void collectFlagged(Node node, boolean nonTree, List<Integer> result) {
+        if (node == null || !(nonTree ? node.subtreeHasNonTreeEdges : node.subtreeHasTreeEdges)) {
+            return;
+        }
+        if (nonTree ? node.hasNonTreeEdges : node.hasTreeEdges) {
+            result.add(node.vertex);
+        }
+        collectFlagged(node.left, nonTree, result);
+        collectFlagged(node.right, nonTree, result);
+    }
+
+    private static void collectVertices(Node node, List<Integer> result) {
+        if (node == null) {
+            return;
+        }
+        if (node.vertex >= 0) {
+            result.add(node.vertex);
+        }
+        collectVertices(node.left, result);
+        collectVertices(node.right, result);
+    }
+
+    private Node vertexNode(int v) {
+        return vertexNodes.computeIfAbsent(v, k -> new Node(k, nextPriority()));
+    }
+
+    private int nextPriority() {
+        seed ^= seed << 13;
+        seed ^= seed >>> 17;
+        seed ^= seed << 5;
+        return seed;
+    }
+
+    /**
+     * Rotate the tour containing the given vertex occurrence so that it starts there.
+     */
+    private static Node reroot(Node node) {
+        Node root = root(node);
+        int i = index(node);
+        if (i == 0) {
+            return root;
+        }
+        Node[] parts = split(root, i);
+        Node result = merge(parts[1], parts[0]);
+        result.parent = null;
+        return result;
+    }
+
+    private static Node root(Node node) {
+        while (node.parent != null) {
+            node = node.parent;
+        }
+        return node;
+    }
+
+    /**
+     * The position of the node in its tour.
+     */
+    private static int index(Node node) {
+        int result = size(node.left);
+        for (Node n = node; n.parent != null; n = n.parent) {
+            if (n.parent.right == n) {
+                result += size(n.parent.left) + 1;
+            }
+        }
+        return result;
+    }
+
+    private static int size(Node node) {
+        return node == null ? 0 : node.size;
+    }
+
+    private static void update(Node node) {
+        node.size = 1 + size(node.left) + size(node.right);
+        node.subtreeHasTreeEdges = node.hasTreeEdges
+                || (node.left != null && node.left.subtreeHasTreeEdges)
+                || (node.right != null && node.right.subtreeHasTreeEdges);
+        node.subtreeHasNonTreeEdges = node.hasNonTreeEdges
+                || (node.left != null && node.left.subtreeHasNonTreeEdges)
+                || (node.right != null && node.right.subtreeHasNonTreeEdges);
+    }
+
+    /**
+     * Split a treap into the first k nodes and the rest. The parents of the returned roots are cleared.
+     */
+    private static Node[] split(Node node, int k) {
+        if (node == null) {
+            return new Node[2];
+        }
+        Node[] result;
+        if (k <= size(node.left)) {
+            result = split(node.left, k);
+            node.left = result[1];
+            if (node.left != null) {
+                node.left.parent = node;
+            }
+            result[1] = node;
+        } else {
+            result = split(node.right, k - size(node.left) - 1);
+            node.right = result[0];
+            if (node.right != null) {
+                node.right.parent = node;
+            }
+            result[0] = node;
+        }
+        update(node);
+        node.parent = null;
+        if (result[0] != null) {
+            result[0].parent = null;
+        }
+        if (result[1] != null) {
+            result[1].parent = null;
+        }
+        return result;
+    }
+
+    /**
+     * Concatenate two treaps. The parent of the result is left for the caller to set.
+     */
+    private static Node merge(Node a, Node b) {
+        if (a == null) {
+            return b;
+        }
+        if (b == null) {
+            return a;
+        }
+        if (a.priority > b.priority) {
+            a.right = merge(a.right, b);
+            a.right.parent = a;
+            update(a);
+            return a;
+        } else {
+            b.left = merge(a, b.left);
+            b.left.parent = b;
+            update(b);
+            return b;
+        }
+    }
+}
@@ -0,0 +1,191 @@
+// Copyright 2021 The Terasology Foundation
+// SPDX-License-Identifier: Apache-2.0
+
+package org.terasology.fallingblocks.node;
+
+import org.joml.Vector3i;
+import org.terasology.fallingblocks.BrickChain;
+import org.terasology.fallingblocks.BrickUtils;
+import org.terasology.fallingblocks.Chain;
+import org.terasology.fallingblocks.Pair;
+import org.terasology.fallingblocks.Tree;
+import org.terasology.fallingblocks.TreeUtils;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.Stack;
+
+/**
+ * The smallest nodes that aren't uniform: a 4x4x4 brick storing which blocks are solid in a single long, with one BrickChain
+ * for each connected component. Uniform bricks are represented by SolidNode and EmptyNode as usual.
+ */
+public class BrickNode extends Node {
+    public static final int SIZE = BrickUtils.SIZE;
+
+    private long blocks;
+    private final Set<Chain> chains;
+
+    public BrickNode(long blocks, Tree tree) {
+        this.size = SIZE;
+        this.tree = tree;
+        this.blocks = blocks;
+        chains = new HashSet<>();
+        long remaining = blocks;
+        while (remaining != 0) {
+            long component = BrickUtils.component(remaining, Long.lowestOneBit(remaining));
+            chains.add(new BrickChain(this, component));
+            remaining &= ~component;
+        }
+    }
+
+    public long getBlocks() {
+        return blocks;
+    }
+
+    @Override
+    public Set<Chain> getChains() {
+        return chains;
+    }
+
+    /**
+     * Returns an octant if there's only one loaded child node, -1 if there are none, and -2 if there are multiple.
+     */
+    @Override
+    public Pair<Integer, Node> canShrink() {
+        return new Pair<>(-2, null);
+    }
+
+    @Override
+    public Pair<Node, Set<Chain>> removeBlock(Vector3i pos) {
+        long bit = 1L << BrickUtils.index(pos);
+        TreeUtils.assrt((blocks & bit) != 0, "Trying to remove a block that isn't there.");
+        blocks &= ~bit;
+        BrickChain chain = getChainContaining(bit);
+        Chain parent = chain.parent;
+        int oldSides = chain.getSides();
+        int newSides = 0;
+        long remaining = chain.getBlocks() & ~bit;
+        long firstComponent = remaining == 0 ? 0 : BrickUtils.component(remaining, Long.lowestOneBit(remaining));
+        if (firstComponent == remaining && remaining != 0) {
+            // Still in one piece, but some of the neighbours may only have been touching the removed block.
+            chain.setBlocks(remaining);
+            newSides = chain.getSides();
+            if (!chain.pruneTouching() && newSides == oldSides) {
+                // The chain is still connected, touches all the same neighbours and reaches the same sides of the brick, so nothing
+                // above this can have changed.
+                Set<Chain> result = new HashSet<>();
+                result.add(chain.getTopAncestor());
+                return new Pair<>(this, result);
+            }
+        } else {
+            int octant = parent.removeSubchain(chain);
+            while (remaining != 0) {
+                long component = BrickUtils.component(remaining, Long.lowestOneBit(remaining));
+                remaining &= ~component;
+                BrickChain fragment = new BrickChain(this, component);
+                newSides |= fragment.getSides();
+                chains.add(fragment);
+                parent.addSubchain(octant, fragment);
+                for (Pair<Integer, Chain> t : chain.touching()) {
+                    if (fragment.baseIsTouching(t.b, t.a)) {
+                        Chain.addTouching(fragment, t.b, t.a);
+                    }
+                }
+            }
+            chain.inactivate(false);
+        }
+        return new Pair<>(blocks == 0 ? EmptyNode.get(size, tree) : this, parent.checkConnectivity(newSides == oldSides));
+    }
+
+    /**
+     * @param pos The position where the node is added, relative to this node.
+     * @param siblings The nodes adjacent to the new block, with the same size as this.
+     * @return The node to replace this with, the chain containing the new block, and the adjacent chains.
+     */
+    @Override
+    public Pair<Node, Pair<Chain, Set<Pair<Integer, Chain>>>> insertFullNode(Vector3i pos, FullNode node,
+                                                                             Set<Pair<Integer, Node>> siblings) {
+        if (size == node.size) {
+            return replaceWithFullNode(node, siblings);
+        }
+        // Anything smaller than a brick must be a single block being added.
+        TreeUtils.assrt(node.size == 1 && node instanceof SolidNode);
+        node.getChain().inactivate(false);
+        long bit = 1L << BrickUtils.index(pos);
+        TreeUtils.assrt((blocks & bit) == 0, "Trying to add a block that is already there.");
+        blocks |= bit;
+
+        List<BrickChain> adjacent = new ArrayList<>();
+        long neighbours = BrickUtils.dilate(bit);
+        for (Chain chain : chains) {
+            if ((((BrickChain) chain).getBlocks() & neighbours) != 0) {
+                adjacent.add((BrickChain) chain);
+            }
+        }
+        BrickChain newChain;
+        if (adjacent.isEmpty()) {
+            newChain = new BrickChain(this, bit);
+            chains.add(newChain);
+        } else {
+            newChain = adjacent.get(0);
+            newChain.setBlocks(newChain.getBlocks() | bit);
+            for (int i = 1; i < adjacent.size(); i++) {
+                newChain.merge(adjacent.get(i));
+            }
+        }
+
+        Set<Pair<Integer, Chain>> nextTouching = new HashSet<>();
+        for (Pair<Integer, Node> sibling : siblings) {
+            for (Chain siblingChain : sibling.b.getChains()) {
+                if (newChain.updateTouching(siblingChain, sibling.a)) {
+                    nextTouching.add(new Pair<>(sibling.a, siblingChain));
+                }
+            }
+        }
+
+        if (blocks == -1L) {
+            Set<Pair<Integer, Node>> altSiblings = new HashSet<>();
+            for (Pair<Integer, Chain> t : newChain.touching()) {
+                altSiblings.add(new Pair<>(t.a, t.b.node));
+            }
+            return replaceWithFullNode(new SolidNode(size, tree), altSiblings);
+        }
+        return new Pair<>(this, new Pair<>(newChain, nextTouching));
+    }
+
+    /**
+     * Replace an UnloadedNode with something else.
+     */
+    @Override
+    public Set<Chain> insertNewChunk(Node newNode, Vector3i pos) {
+        throw new RuntimeException("Trying to insert new chunk in a leaf node. Node can't replace itself.");
+    }
+
+    private BrickChain getChainContaining(long bit) {
+        for (Chain chain : chains) {
+            if ((((BrickChain) chain).getBlocks() & bit) != 0) {
+                return (BrickChain) chain;
+            }
+        }
+        throw new IllegalStateException("No chain contains the block.");
+    }
+
+    @Override
+    public void validate(Stack<Integer> location) {
+        long total = 0;
+        for (Chain chain : chains) {
+            chain.validate(location);
+            TreeUtils.assrt(chain.node == this);
+            long chainBlocks = ((BrickChain) chain).getBlocks();
+            TreeUtils.assrt((total & chainBlocks) == 0);
+            total |= chainBlocks;
+            for (Chain otherChain : chains) {
+                TreeUtils.assrt(chain == otherChain || !chain.isTouching(otherChain, 0));
+            }
+        }
+        TreeUtils.assrt(total == blocks);
+        TreeUtils.assrt(blocks != 0 && blocks != -1L);
+    }
+}
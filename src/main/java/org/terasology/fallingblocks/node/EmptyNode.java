@@ -55,6 +55,8 @@ public final class EmptyNode extends Node {
                                                                              Set<Pair<Integer, Node>> siblings) {
         if (size == node.size) {
             return replaceWithFullNode(node, siblings);
+        } else if (size == BrickNode.SIZE) {
+            return new BrickNode(0, tree).insertFullNode(pos, node, siblings);
         } else {
             return equivalentInternalNode().insertFullNode(pos, node, siblings);
         }
@@ -10,9 +10,14 @@ import org.terasology.fallingblocks.Chain;
 import org.terasology.fallingblocks.Pair;
 import org.terasology.fallingblocks.Tree;
 import org.terasology.fallingblocks.TreeUtils;
+import org.terasology.fallingblocks.arrays.UnionFind;
 
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.Stack;
 
@@ -34,42 +39,82 @@ public class InternalNode extends Node {
         this.tree = tree;
         this.children = children;
 
-        Set<Pair<Integer, Chain>> subChains = new HashSet<>();
+        int[] octantStarts = new int[9];
+        for (int i = 0; i < 8; i++) {
+            octantStarts[i + 1] = octantStarts[i] + children[i].getChains().size();
+        }
+        int n = octantStarts[8];
+        Chain[] subChains = new Chain[n];
+        int[] octants = new int[n];
+        int k = 0;
         for (int i = 0; i < 8; i++) {
             for (Chain c : children[i].getChains()) {
-                subChains.add(new Pair<>(i, c));
+                subChains[k] = c;
+                octants[k] = i;
+                k++;
             }
         }
 
-        chains = new HashSet<>();
-
-        // DFS to construct the Chains, and update the touching sets of the sub-chains at the same time. The search is
-        // arranged a little non-standardly in order to catch all the touching pairs.
-        Stack<Pair<Integer, Chain>> stack = new Stack<>();
-        while (!subChains.isEmpty()) {
-            Set<Pair<Integer, Chain>> rawChain = new HashSet<>();
-            Pair<Integer, Chain> first = subChains.iterator().next();
-            rawChain.add(first);
-            stack.push(first);
-            while (!stack.isEmpty()) {
-                Pair<Integer, Chain> current = stack.pop();
-                for (Pair<Integer, Chain> next : subChains) {
-                    int direction = TreeUtils.isAdjacent(current.a, next.a);
-                    if (direction != 0 && current.b.updateTouching(next.b, direction)) {
-                        if (!rawChain.contains(next)) {
-                            rawChain.add(next);
-                            stack.push(next);
+        // Only subchains in adjacent octants can touch, so check each of the 12 adjacent pairs of octants, updating the
+        // touching sets of the subchains at the same time, and join up the ones that touch. Only the subchains which reach the
+        // face between the two octants are paired up, as with many small chains most of them don't.
+        UnionFind components = tree.unionFind;
+        components.reset(n);
+        int[] facing = new int[n];
+        for (int octant1 = 0; octant1 < 8; octant1++) {
+            for (int direction = 1; direction < 8; direction *= 2) {
+                if ((octant1 & direction) != 0) {
+                    continue;
+                }
+                int octant2 = octant1 + direction;
+                int numFacing = 0;
+                for (int j = octantStarts[octant2]; j < octantStarts[octant2 + 1]; j++) {
+                    if (subChains[j].isTouching(-direction)) {
+                        facing[numFacing++] = j;
+                    }
+                }
+                if (numFacing == 0) {
+                    continue;
+                }
+                for (int i = octantStarts[octant1]; i < octantStarts[octant1 + 1]; i++) {
+                    if (!subChains[i].isTouching(direction)) {
+                        continue;
+                    }
+                    for (int f = 0; f < numFacing; f++) {
+                        int j = facing[f];
+                        if (subChains[i].updateTouching(subChains[j], direction)) {
+                            components.union(i, j);
                         }
                     }
                 }
             }
-            subChains.removeAll(rawChain);
+        }
 
-            Chain chain = new Chain(rawChain, this);
-            chains.add(chain);
+        Map<Integer, Set<Pair<Integer, Chain>>> rawChains = new HashMap<>();
+        for (int i = 0; i < n; i++) {
+            rawChains.computeIfAbsent(components.find(i), key -> new HashSet<>()).add(new Pair<>(octants[i], subChains[i]));
+        }
+        chains = new HashSet<>();
+        for (Set<Pair<Integer, Chain>> rawChain : rawChains.values()) {
+            chains.add(new Chain(rawChain, this));
         }
     }
 
+    private InternalNode(int size, Node[] children, Tree tree, Set<Chain> chains) {
+        this.size = size;
+        this.tree = tree;
+        this.children = children;
+        this.chains = chains;
+    }
+
+    /**
+     * Make a node without working out its chains, for when they're already known (as in TreeSnapshot). The chains must be added
+     * to getChains afterwards.
+     */
+    public static InternalNode withoutChains(int size, Node[] children, Tree tree) {
+        return new InternalNode(size, children, tree, new HashSet<>());
+    }
+
     @Override
     public Set<Chain> getChains() {
         return chains;
@@ -79,7 +124,13 @@ public class InternalNode extends Node {
     public Pair<Node, Set<Chain>> removeBlock(Vector3i pos) {
         int octant = TreeUtils.octantOfPosition(pos, size);
         Vector3i subPosition = TreeUtils.modVector(pos, size / 2);
-        Pair<Node, Set<Chain>> childResult = children[octant].removeBlock(subPosition);
+        return finishRemoveBlock(octant, children[octant].removeBlock(subPosition));
+    }
+
+    /**
+     * The part of removeBlock after the block has been removed from the child node in the given octant.
+     */
+    Pair<Node, Set<Chain>> finishRemoveBlock(int octant, Pair<Node, Set<Chain>> childResult) {
         children[octant] = childResult.a;
         return new Pair<>(chains.isEmpty() ? EmptyNode.get(size, tree) : this, childResult.b);
     }
@@ -126,7 +177,16 @@ public class InternalNode extends Node {
             }
         }
 
-        Pair<Node, Pair<Chain, Set<Pair<Integer, Chain>>>> p = children[octant].insertFullNode(subPosition, node, nextSiblings);
+        return finishInsertFullNode(octant, node, siblings, children[octant].insertFullNode(subPosition, node, nextSiblings));
+    }
+
+    /**
+     * The part of insertFullNode after the node has been inserted into the child node in the given octant.
+     *
+     * @param p The result of inserting it into the child
+     */
+    Pair<Node, Pair<Chain, Set<Pair<Integer, Chain>>>> finishInsertFullNode(int octant, FullNode node, Set<Pair<Integer, Node>> siblings,
+                                                                           Pair<Node, Pair<Chain, Set<Pair<Integer, Chain>>>> p) {
         children[octant] = p.a;
         Chain newChain = p.b.a;
         Set<Pair<Integer, Chain>> touching = p.b.b;
@@ -222,24 +282,61 @@ public class InternalNode extends Node {
         int octant = TreeUtils.octantOfPosition(pos, size);
         Node oldChild = children[octant];
         if (oldChild instanceof UnloadedNode) {
-            children[octant] = TreeUtils.buildExpandedNode(tree, newNode, TreeUtils.modVector(pos, size / 2), size / 2);
-            Chain chain = ((UnloadedNode) oldChild).getChain();
-            TreeUtils.assrt(chain.isActive());
-            TreeUtils.assrt(chain.parent.isActive());
-            chain.parent.removeSubchain(chain);
-            for (Chain childChain : children[octant].getChains()) {
-                chain.parent.addSubchain(octant, childChain);
-                for (Pair<Integer, Chain> t : chain.touching()) {
-                    childChain.updateTouching(t.b, t.a);
-                }
-            }
-            chain.inactivate(false);
-            return chain.parent.checkConnectivity();
+            return replaceUnloadedChild(octant,
+                    TreeUtils.buildExpandedNode(tree, newNode, TreeUtils.modVector(pos, size / 2), size / 2)).checkConnectivity();
         } else {
             return oldChild.insertNewChunk(newNode, TreeUtils.modVector(pos, size / 2));
         }
     }
 
+    @Override
+    public void insertNewChunks(List<Pair<Vector3i, Node>> chunks, Set<Chain> toCheck) {
+        List<List<Pair<Vector3i, Node>>> octantChunks = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            octantChunks.add(new ArrayList<>());
+        }
+        for (Pair<Vector3i, Node> chunk : chunks) {
+            if (chunk.b.size >= size) {
+                logger.warn("Adding already loaded chunk.");
+                continue;
+            }
+            int octant = TreeUtils.octantOfPosition(chunk.a, size);
+            octantChunks.get(octant).add(new Pair<>(TreeUtils.modVector(chunk.a, size / 2), chunk.b));
+        }
+        for (int octant = 0; octant < 8; octant++) {
+            List<Pair<Vector3i, Node>> newChunks = octantChunks.get(octant);
+            if (newChunks.isEmpty()) {
+                continue;
+            }
+            if (children[octant] instanceof UnloadedNode) {
+                toCheck.add(replaceUnloadedChild(octant, TreeUtils.buildExpandedNode(tree, newChunks, size / 2)));
+            } else {
+                children[octant].insertNewChunks(newChunks, toCheck);
+            }
+        }
+    }
+
+    /**
+     * Replace the UnloadedNode in the given octant, moving the new node's chains into the chain the old one was part of.
+     *
+     * @return That chain, which now needs its connectivity checking
+     */
+    private Chain replaceUnloadedChild(int octant, Node newChild) {
+        Chain chain = ((UnloadedNode) children[octant]).getChain();
+        children[octant] = newChild;
+        TreeUtils.assrt(chain.isActive());
+        TreeUtils.assrt(chain.parent.isActive());
+        chain.parent.removeSubchain(chain);
+        for (Chain childChain : newChild.getChains()) {
+            chain.parent.addSubchain(octant, childChain);
+            for (Pair<Integer, Chain> t : chain.touching()) {
+                childChain.updateTouching(t.b, t.a);
+            }
+        }
+        chain.inactivate(false);
+        return chain.parent;
+    }
+
     @Override
     public void validate(Stack<Integer> location) {
         for (int i = 0; i < 8; i++) {
@@ -9,6 +9,7 @@ import org.terasology.fallingblocks.Pair;
 import org.terasology.fallingblocks.Tree;
 
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 import java.util.Stack;
 
@@ -81,6 +82,17 @@ public abstract class Node {
      * Replace an UnloadedNode with something else.
      */
     public abstract Set<Chain> insertNewChunk(Node newNode, Vector3i pos);
+
+    /**
+     * Replace several UnloadedNodes at once, like insertNewChunk, but without checking the connectivity of the chains they're
+     * inserted into. Those chains are added to toCheck instead, so that they can all be checked together afterwards (see
+     * Chain.checkConnectivity(Collection)).
+     *
+     * @param chunks The new nodes, and their positions relative to this node
+     */
+    public void insertNewChunks(List<Pair<Vector3i, Node>> chunks, Set<Chain> toCheck) {
+        throw new RuntimeException("Trying to insert new chunks in a leaf node. Node can't replace itself.");
+    }
     
     /**
      * Replace something else with an UnloadedNode.
@@ -0,0 +1,114 @@
+// Copyright 2021 The Terasology Foundation
+// SPDX-License-Identifier: Apache-2.0
+
+package org.terasology.fallingblocks.node;
+
+import org.joml.Vector3i;
+import org.terasology.fallingblocks.Chain;
+import org.terasology.fallingblocks.Pair;
+import org.terasology.fallingblocks.TreeUtils;
+
+import java.util.Collections;
+import java.util.Set;
+
+/**
+ * The InternalNodes leading from the root node of a tree down to one particular node, and the octant taken at each step. This
+ * allows changes to be made starting from that node, with only the steps back up to the root repeated afterwards.
+ * <p>
+ * The path isn't updated when the tree changes, so it must be checked with isValid before it's used.
+ */
+public class NodePath {
+    private final InternalNode[] ancestors;
+    private final int[] octants;
+
+    private NodePath(InternalNode[] ancestors, int[] octants) {
+        this.ancestors = ancestors;
+        this.octants = octants;
+    }
+
+    /**
+     * Find the path to the node of the given size containing the given position.
+     *
+     * @param pos The position, relative to the root node
+     * @return The path, or null if there isn't a node of that size there (e.g. it's part of a larger FullNode)
+     */
+    public static NodePath find(Node root, Vector3i pos, int size) {
+        int depth = Integer.numberOfTrailingZeros(root.size) - Integer.numberOfTrailingZeros(size);
+        if (depth <= 0) {
+            return null;
+        }
+        InternalNode[] ancestors = new InternalNode[depth];
+        int[] octants = new int[depth];
+        Node node = root;
+        Vector3i subPosition = pos;
+        for (int i = 0; i < depth; i++) {
+            if (!(node instanceof InternalNode)) {
+                return null;
+            }
+            ancestors[i] = (InternalNode) node;
+            octants[i] = TreeUtils.octantOfPosition(subPosition, node.size);
+            subPosition = TreeUtils.modVector(subPosition, node.size / 2);
+            node = ancestors[i].children[octants[i]];
+        }
+        return new NodePath(ancestors, octants);
+    }
+
+    /**
+     * Whether the tree still has this structure, i.e. none of the nodes on the path have been replaced.
+     */
+    public boolean isValid(Node root) {
+        if (ancestors[0] != root) {
+            return false;
+        }
+        for (int i = 1; i < ancestors.length; i++) {
+            if (ancestors[i - 1].children[octants[i - 1]] != ancestors[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The node at the end of the path.
+     */
+    public Node getNode() {
+        return ancestors[ancestors.length - 1].children[octants[octants.length - 1]];
+    }
+
+    /**
+     * Add a block to the node at the end of the path, like Node.addBlock on the root. The block mustn't be on any of the faces of
+     * that node, as the nodes adjacent to it on the other side wouldn't be taken into account.
+     *
+     * @param pos The position of the block, relative to the node at the end of the path
+     * @return The new root node, and the chain containing the block
+     */
+    public Pair<Node, Chain> addBlock(Vector3i pos) {
+        Node node = getNode();
+        TreeUtils.assrt(!isOnFace(pos, node.size));
+        SolidNode block = new SolidNode(1, node.tree);
+        Set<Pair<Integer, Node>> siblings = Collections.emptySet();
+        Pair<Node, Pair<Chain, Set<Pair<Integer, Chain>>>> result = node.insertFullNode(pos, block, siblings);
+        for (int i = ancestors.length - 1; i >= 0; i--) {
+            result = ancestors[i].finishInsertFullNode(octants[i], block, siblings, result);
+        }
+        return new Pair<>(result.a, result.b.a);
+    }
+
+    /**
+     * Remove a block from the node at the end of the path, like Node.removeBlock on the root.
+     *
+     * @param pos The position of the block, relative to the node at the end of the path
+     * @return The new root node, and the chains which may need checking for detachment
+     */
+    public Pair<Node, Set<Chain>> removeBlock(Vector3i pos) {
+        Pair<Node, Set<Chain>> result = getNode().removeBlock(pos);
+        for (int i = ancestors.length - 1; i >= 0; i--) {
+            result = ancestors[i].finishRemoveBlock(octants[i], result);
+        }
+        return result;
+    }
+
+    public static boolean isOnFace(Vector3i pos, int size) {
+        return pos.x == 0 || pos.y == 0 || pos.z == 0 || pos.x == size - 1 || pos.y == size - 1 || pos.z == size - 1;
+    }
+}
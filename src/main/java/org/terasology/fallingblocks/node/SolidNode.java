@@ -43,12 +43,16 @@ public class SolidNode extends FullNode {
     
     @Override
     public Pair<Node, Set<Chain>> removeBlock(Vector3i pos) {
-        if (size == 1) {
-            chain.parent.removeSubchain(chain);
-            chain.inactivate(false);
-            return new Pair<>(EmptyNode.get(size, tree), chain.parent.checkConnectivity());
+        if (size == BrickNode.SIZE) {
+            return equivalentBrickNode().removeBlock(pos);
         } else {
             return equivalentInternalNode().removeBlock(pos);
         }
     }
+
+    private BrickNode equivalentBrickNode() {
+        BrickNode replacementNode = new BrickNode(-1L, tree);
+        chain.replaceWith(replacementNode.getChains().iterator().next());
+        return replacementNode;
+    }
 }
@@ -6,10 +6,15 @@ package org.terasology.fallingblocks.updates;
 import org.joml.Vector3i;
 import org.terasology.fallingblocks.Chain;
 import org.terasology.fallingblocks.Pair;
+import org.terasology.fallingblocks.RegionForest;
 import org.terasology.fallingblocks.Tree;
+import org.terasology.fallingblocks.TreeUtils;
+import org.terasology.fallingblocks.graph.BlockGraph;
 import org.terasology.fallingblocks.node.Node;
+import org.terasology.fallingblocks.node.NodePath;
 
 import java.util.Collections;
+import java.util.Map;
 import java.util.Set;
 
 public class AdditionUpdate implements Update {
@@ -21,8 +26,26 @@ public class AdditionUpdate implements Update {
 
     @Override
     public Set<Chain> execute(Tree tree) {
-        Pair<Node, Chain> additionResult = tree.rootNode.addBlock(new Vector3i(pos).sub(tree.rootNodePos));
+        Vector3i slicePos = TreeUtils.modVector(pos, Tree.CHUNK_NODE_SIZE);
+        NodePath path = NodePath.isOnFace(slicePos, Tree.CHUNK_NODE_SIZE) ? null : tree.chunkDirectory.getPath(tree, pos);
+        Pair<Node, Chain> additionResult;
+        if (path != null) {
+            additionResult = path.addBlock(slicePos);
+        } else {
+            // Adding a block on the face of a slice can join it to the slices next to it, which the path doesn't cover.
+            additionResult = tree.rootNode.addBlock(new Vector3i(pos).sub(tree.rootNodePos));
+        }
         tree.rootNode = additionResult.a;
         return Collections.singleton(additionResult.b);
     }
+
+    @Override
+    public void execute(BlockGraph graph) {
+        graph.setBlock(pos, true);
+    }
+
+    @Override
+    public Map<Vector3i, Update> splitByRegion(RegionForest forest) {
+        return Collections.singletonMap(RegionForest.regionPos(pos), this);
+    }
 }
@@ -0,0 +1,67 @@
+// Copyright 2021 The Terasology Foundation
+// SPDX-License-Identifier: Apache-2.0
+
+package org.terasology.fallingblocks.updates;
+
+import org.joml.Vector3i;
+import org.terasology.fallingblocks.Chain;
+import org.terasology.fallingblocks.RegionForest;
+import org.terasology.fallingblocks.Tree;
+import org.terasology.fallingblocks.graph.BlockGraph;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * All of the net changes in solidity from one tick, applied together.
+ */
+public class BlockChangesUpdate implements Update {
+    Collection<Vector3i> additions;
+    Collection<Vector3i> removals;
+
+    public BlockChangesUpdate(Collection<Vector3i> additions, Collection<Vector3i> removals) {
+        this.additions = additions;
+        this.removals = removals;
+    }
+
+    @Override
+    public Set<Chain> execute(Tree tree) {
+        Set<Chain> result = new HashSet<>();
+        // Additions go first so that a block placed and another removed in the same tick can't cause a temporary split.
+        for (Vector3i pos : additions) {
+            result.addAll(new AdditionUpdate(pos).execute(tree));
+        }
+        for (Vector3i pos : removals) {
+            result.addAll(new RemovalUpdate(pos).execute(tree));
+        }
+        return result;
+    }
+
+    @Override
+    public void execute(BlockGraph graph) {
+        for (Vector3i pos : additions) {
+            graph.setBlock(pos, true);
+        }
+        for (Vector3i pos : removals) {
+            graph.setBlock(pos, false);
+        }
+    }
+
+    @Override
+    public Map<Vector3i, Update> splitByRegion(RegionForest forest) {
+        Map<Vector3i, Update> result = new HashMap<>();
+        for (Vector3i pos : additions) {
+            ((BlockChangesUpdate) result.computeIfAbsent(RegionForest.regionPos(pos), k -> new BlockChangesUpdate(new ArrayList<>(),
+                    new ArrayList<>()))).additions.add(pos);
+        }
+        for (Vector3i pos : removals) {
+            ((BlockChangesUpdate) result.computeIfAbsent(RegionForest.regionPos(pos), k -> new BlockChangesUpdate(new ArrayList<>(),
+                    new ArrayList<>()))).removals.add(pos);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,127 @@
+// Copyright 2021 The Terasology Foundation
+// SPDX-License-Identifier: Apache-2.0
+
+package org.terasology.fallingblocks.updates;
+
+import org.joml.Vector3i;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.terasology.fallingblocks.Chain;
+import org.terasology.fallingblocks.Pair;
+import org.terasology.fallingblocks.RegionForest;
+import org.terasology.fallingblocks.Tree;
+import org.terasology.fallingblocks.TreeUtils;
+import org.terasology.fallingblocks.graph.BlockGraph;
+import org.terasology.fallingblocks.node.Node;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Loading many chunk-sized slices together, such as a burst of chunks arriving at once. All of the new nodes are inserted into the
+ * tree in one pass, and the connectivity of each chain they're inserted into, and its ancestors, is only checked once, rather than
+ * once per slice. Wherever several slices replace the same unloaded node, or there isn't a tree yet, the new part of the tree is
+ * built from the bottom up in one go.
+ */
+public class BulkLoadUpdate implements Update {
+    private static final Logger logger = LoggerFactory.getLogger(BulkLoadUpdate.class);
+
+    List<LoadUpdate> slices;
+
+    public BulkLoadUpdate(List<LoadUpdate> slices) {
+        this.slices = latestOfEachPosition(slices);
+    }
+
+    /**
+     * A slice can only be inserted once, so if the same one was loaded more than once, only the latest load of it is kept.
+     */
+    private static List<LoadUpdate> latestOfEachPosition(List<LoadUpdate> slices) {
+        Map<Vector3i, LoadUpdate> latest = new LinkedHashMap<>();
+        for (LoadUpdate slice : slices) {
+            if (latest.put(slice.pos, slice) != null) {
+                logger.warn("Adding already loaded chunk.");
+            }
+        }
+        return latest.size() == slices.size() ? slices : new ArrayList<>(latest.values());
+    }
+
+    /**
+     * Start building the independent parts of all the slices in advance (see LoadUpdate.prepare).
+     */
+    public void prepare(ForkJoinPool pool, Tree tree) {
+        for (LoadUpdate slice : slices) {
+            slice.prepare(pool, tree);
+        }
+    }
+
+    @Override
+    public Set<Chain> execute(Tree tree) {
+        if (tree.rootNode == null) {
+            return buildRoot(tree);
+        }
+        for (LoadUpdate slice : slices) {
+            LoadUpdate.expandRoot(tree, slice.pos);
+        }
+        List<Pair<Vector3i, Node>> nodes = new ArrayList<>();
+        for (LoadUpdate slice : slices) {
+            nodes.add(new Pair<>(new Vector3i(slice.pos).sub(tree.rootNodePos), slice.buildNode(tree)));
+        }
+        Set<Chain> toCheck = new HashSet<>();
+        tree.rootNode.insertNewChunks(nodes, toCheck);
+        return Chain.checkConnectivity(toCheck);
+    }
+
+    /**
+     * Build a new root node covering all the slices, with no existing tree to insert them into.
+     */
+    private Set<Chain> buildRoot(Tree tree) {
+        Vector3i rootPos = new Vector3i(slices.get(0).pos);
+        int size = Tree.CHUNK_NODE_SIZE;
+        for (LoadUpdate slice : slices) {
+            // Expand in the same way as LoadUpdate.expandRoot, so that the divisions are in the usual places.
+            while (!isWithin(slice.pos, rootPos, size)) {
+                rootPos.sub(TreeUtils.modVector(new Vector3i(rootPos).add(Tree.ROOT_OFFSET, Tree.ROOT_OFFSET, Tree.ROOT_OFFSET),
+                        size * 2));
+                size *= 2;
+            }
+        }
+        List<Pair<Vector3i, Node>> nodes = new ArrayList<>();
+        for (LoadUpdate slice : slices) {
+            nodes.add(new Pair<>(new Vector3i(slice.pos).sub(rootPos), slice.buildNode(tree)));
+        }
+        tree.rootNode = TreeUtils.buildExpandedNode(tree, nodes, size);
+        tree.rootNodePos = rootPos;
+        return new HashSet<>(tree.rootNode.getChains());
+    }
+
+    private static boolean isWithin(Vector3i pos, Vector3i nodePos, int size) {
+        return pos.x >= nodePos.x && pos.y >= nodePos.y && pos.z >= nodePos.z
+                && pos.x < nodePos.x + size && pos.y < nodePos.y + size && pos.z < nodePos.z + size;
+    }
+
+    @Override
+    public void execute(BlockGraph graph) {
+        for (LoadUpdate slice : slices) {
+            slice.execute(graph);
+        }
+    }
+
+    @Override
+    public Map<Vector3i, Update> splitByRegion(RegionForest forest) {
+        Map<Vector3i, List<LoadUpdate>> regionSlices = new HashMap<>();
+        for (LoadUpdate slice : slices) {
+            regionSlices.computeIfAbsent(RegionForest.regionPos(slice.pos), k -> new ArrayList<>()).add(slice);
+        }
+        Map<Vector3i, Update> result = new HashMap<>();
+        for (Map.Entry<Vector3i, List<LoadUpdate>> entry : regionSlices.entrySet()) {
+            result.put(entry.getKey(), new BulkLoadUpdate(entry.getValue()));
+        }
+        return result;
+    }
+}
@@ -0,0 +1,91 @@
+// Copyright 2021 The Terasology Foundation
+// SPDX-License-Identifier: Apache-2.0
+
+package org.terasology.fallingblocks.updates;
+
+import org.joml.Vector3i;
+import org.terasology.fallingblocks.Chain;
+import org.terasology.fallingblocks.RegionForest;
+import org.terasology.fallingblocks.Tree;
+import org.terasology.fallingblocks.TreeUtils;
+import org.terasology.fallingblocks.graph.BlockGraph;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Unloading many chunk-sized slices together, such as all the chunks left behind when a player moves away. Wherever the slices
+ * fill a whole larger node of the tree, that node is replaced with a single UnloadedNode in one step, rather than one slice at a
+ * time, and the root node is only shrunk once at the end.
+ */
+public class BulkUnloadUpdate implements Update {
+    List<Vector3i> positions;
+
+    public BulkUnloadUpdate(List<Vector3i> positions) {
+        this.positions = positions;
+    }
+
+    @Override
+    public Set<Chain> execute(Tree tree) {
+        if (tree.rootNode == null) {
+            return Collections.emptySet();
+        }
+        Set<Vector3i> nodes = new HashSet<>();
+        for (Vector3i pos : positions) {
+            tree.chunkDirectory.remove(pos);
+            if (tree.isWithinRootNode(pos)) {
+                nodes.add(new Vector3i(pos).sub(tree.rootNodePos));
+            }
+        }
+        // Starting with the slices themselves, replace each complete set of 8 nodes with their parent, until there are none left.
+        int size = Tree.CHUNK_NODE_SIZE;
+        while (!nodes.isEmpty()) {
+            Set<Vector3i> parents = new HashSet<>();
+            if (size < tree.rootNode.size) {
+                Map<Vector3i, Integer> counts = new HashMap<>();
+                for (Vector3i node : nodes) {
+                    counts.merge(new Vector3i(node).sub(TreeUtils.modVector(node, size * 2)), 1, Integer::sum);
+                }
+                for (Map.Entry<Vector3i, Integer> count : counts.entrySet()) {
+                    if (count.getValue() == 8) {
+                        parents.add(count.getKey());
+                    }
+                }
+            }
+            for (Vector3i node : nodes) {
+                if (!parents.contains(new Vector3i(node).sub(TreeUtils.modVector(node, size * 2)))) {
+                    tree.rootNode = tree.rootNode.removeChunk(node, size).a;
+                }
+            }
+            nodes = parents;
+            size *= 2;
+        }
+        UnloadUpdate.shrinkRoot(tree);
+        return Collections.emptySet();
+    }
+
+    @Override
+    public void execute(BlockGraph graph) {
+        for (Vector3i pos : positions) {
+            graph.unloadSlice(pos);
+        }
+    }
+
+    @Override
+    public Map<Vector3i, Update> splitByRegion(RegionForest forest) {
+        Map<Vector3i, List<Vector3i>> regionPositions = new HashMap<>();
+        for (Vector3i pos : positions) {
+            regionPositions.computeIfAbsent(RegionForest.regionPos(pos), k -> new ArrayList<>()).add(pos);
+        }
+        Map<Vector3i, Update> result = new HashMap<>();
+        for (Map.Entry<Vector3i, List<Vector3i>> entry : regionPositions.entrySet()) {
+            result.put(entry.getKey(), new BulkUnloadUpdate(entry.getValue()));
+        }
+        return result;
+    }
+}
@@ -0,0 +1,41 @@
+// Copyright 2021 The Terasology Foundation
+// SPDX-License-Identifier: Apache-2.0
+
+package org.terasology.fallingblocks.updates;
+
+/**
+ * When the UpdateThread should look for block groups which have become detached. Checking is cheap compared to the updates
+ * themselves, but checking less often means that changes which are quickly followed by more changes nearby only get checked once.
+ */
+public enum DetectionPolicy {
+    /**
+     * Check after every update.
+     */
+    IMMEDIATE,
+    /**
+     * Check once the delay has passed since the first unchecked update, however many more updates have arrived since.
+     */
+    LATENCY_BUDGET,
+    /**
+     * Check once no updates have arrived for the delay, or once the maximum delay has passed since the first unchecked update,
+     * whichever is sooner.
+     */
+    QUIESCENCE;
+
+    /**
+     * The time at which a check should happen, on the same clock as the arguments.
+     *
+     * @param firstUpdate The time of the first update since the last check
+     * @param lastUpdate The time of the most recent update
+     */
+    long deadline(long firstUpdate, long lastUpdate, long delay, long maxDelay) {
+        switch (this) {
+            case IMMEDIATE:
+                return lastUpdate;
+            case LATENCY_BUDGET:
+                return firstUpdate + delay;
+            default:
+                return Math.min(lastUpdate + delay, firstUpdate + maxDelay);
+        }
+    }
+}
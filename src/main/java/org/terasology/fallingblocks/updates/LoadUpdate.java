@@ -5,30 +5,129 @@ package org.terasology.fallingblocks.updates;
 
 import org.joml.Vector3i;
 import org.terasology.fallingblocks.Chain;
+import org.terasology.fallingblocks.ChunkData;
+import org.terasology.fallingblocks.ChunkSummary;
+import org.terasology.fallingblocks.RegionForest;
 import org.terasology.fallingblocks.Tree;
+import org.terasology.fallingblocks.TreeSnapshot;
 import org.terasology.fallingblocks.TreeUtils;
+import org.terasology.fallingblocks.graph.BlockGraph;
+import org.terasology.fallingblocks.node.BrickNode;
 import org.terasology.fallingblocks.node.Node;
+import org.terasology.fallingblocks.node.UnloadedNode;
 
+import java.util.Collections;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
 
 public class LoadUpdate implements Update {
-    boolean[] data;
+    // Below this size, the bricks are built on one thread rather than splitting the work further.
+    private static final int PARALLEL_BRICKS_SIZE = 16;
+
+    ChunkData data;
     Vector3i pos;
+    // The task started by prepare, if it's been called, and the parts of the new node it worked out for that tree.
+    private ForkJoinTask<?> preparation;
+    private ChunkSummary summary;
+    private Node[] bricks;
+    private Tree preparedTree;
+    // The copy of the node saved with the world, if there is one, and whether it's already been checked against the data.
+    private TreeSnapshot.Slice snapshot;
+    private boolean snapshotChecked;
 
-    public LoadUpdate(boolean[] data, Vector3i pos) {
+    public LoadUpdate(ChunkData data, Vector3i pos) {
         this.data = data;
         this.pos = pos;
     }
 
+    /**
+     * Read the node back from the given snapshot rather than building it, if it still matches the data.
+     */
+    public void useSnapshot(TreeSnapshot.Slice slice) {
+        snapshot = slice;
+    }
+
+    /**
+     * Start building the parts of the new node that don't depend on the rest of the tree in the pool: the summary of the data and
+     * all of the BrickNodes, or just checking the snapshot if there is one. This runs at the same time as other updates to the
+     * tree, and execute waits for it to finish. Only the first call does anything.
+     */
+    public void prepare(ForkJoinPool pool, Tree tree) {
+        if (preparation != null || data.isUniform()) {
+            return;
+        }
+        preparation = pool.submit(new RecursiveAction() {
+            @Override
+            protected void compute() {
+                if (snapshot != null) {
+                    snapshotChecked = true;
+                    if (snapshot.matches(data)) {
+                        return;
+                    }
+                    snapshot = null;
+                }
+                ChunkSummary newSummary = new ChunkSummary(data);
+                Node[] newBricks = new Node[ChunkData.WORDS];
+                new BrickBuilder(tree, newSummary, Tree.CHUNK_NODE_SIZE, 0, newBricks).invoke();
+                summary = newSummary;
+                bricks = newBricks;
+                preparedTree = tree;
+            }
+        });
+    }
+
     @Override
     public Set<Chain> execute(Tree tree) {
-        Node node = TreeUtils.buildNode(tree, data, Tree.CHUNK_NODE_SIZE, new Vector3i());
+        Node node = buildNode(tree);
         if (tree.rootNode == null) {
             //logger.info("Starting new root node.");
             tree.rootNode = node;
             tree.rootNodePos = pos;
             return tree.rootNode.getChains();
         }
+        expandRoot(tree, pos);
+        TreeUtils.assrt(tree.rootNode != node);
+        return tree.rootNode.insertNewChunk(node, new Vector3i(pos).sub(tree.rootNodePos));
+    }
+
+    /**
+     * Build the new node, reading it from the snapshot or using the parts built in advance by prepare if there are any.
+     */
+    Node buildNode(Tree tree) {
+        if (preparation != null) {
+            preparation.join();
+            preparation = null;
+        }
+        if (snapshot != null) {
+            TreeSnapshot.Slice slice = snapshot;
+            snapshot = null;
+            if (snapshotChecked || slice.matches(data)) {
+                return slice.read(tree);
+            }
+        }
+        if (bricks != null && preparedTree == tree) {
+            Node node = TreeUtils.buildNode(tree, summary, Tree.CHUNK_NODE_SIZE, 0, bricks);
+            summary = null;
+            bricks = null;
+            return node;
+        } else {
+            return TreeUtils.buildNode(tree, data);
+        }
+    }
+
+    /**
+     * Expand the root node of the tree until it contains the given position, and make sure it's a node that chunks can be
+     * inserted into.
+     */
+    static void expandRoot(Tree tree, Vector3i pos) {
+        if (tree.rootNode instanceof UnloadedNode) {
+            // A fixed root becomes a single UnloadedNode once all of it has unloaded, which only happens if the region hasn't been
+            // removed yet because there are more updates to it in the same batch.
+            tree.rootNode = ((UnloadedNode) tree.rootNode).equivalentInternalNode();
+        }
         while (!tree.isWithinRootNode(pos)) {
             Vector3i relativePos = TreeUtils.modVector(new Vector3i(tree.rootNodePos).add(Tree.ROOT_OFFSET,
                     Tree.ROOT_OFFSET, Tree.ROOT_OFFSET), tree.rootNode.size * 2);
@@ -37,7 +136,50 @@ public class LoadUpdate implements Update {
             tree.rootNode = TreeUtils.buildExpandedNode(tree, tree.rootNode, relativePos, tree.rootNode.size * 2);
             tree.rootNodePos = newRootNodePos;
         }
-        TreeUtils.assrt(tree.rootNode != node);
-        return tree.rootNode.insertNewChunk(node, new Vector3i(pos).sub(tree.rootNodePos));
+    }
+
+    /**
+     * Builds the bricks in each octant as a separate task, down to PARALLEL_BRICKS_SIZE.
+     */
+    private static final class BrickBuilder extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Tree tree;
+        private final ChunkSummary summary;
+        private final int size;
+        private final int start;
+        private final Node[] bricks;
+
+        BrickBuilder(Tree tree, ChunkSummary summary, int size, int start, Node[] bricks) {
+            this.tree = tree;
+            this.summary = summary;
+            this.size = size;
+            this.start = start;
+            this.bricks = bricks;
+        }
+
+        @Override
+        protected void compute() {
+            if (size <= PARALLEL_BRICKS_SIZE || size == BrickNode.SIZE) {
+                TreeUtils.buildBricks(tree, summary, size, start, bricks);
+            } else if (summary.uniformity(size, start) == ChunkSummary.MIXED) {
+                BrickBuilder[] children = new BrickBuilder[8];
+                int childVolume = size * size * size / 8;
+                for (int i = 0; i < 8; i++) {
+                    children[i] = new BrickBuilder(tree, summary, size / 2, start + i * childVolume, bricks);
+                }
+                invokeAll(children);
+            }
+        }
+    }
+
+    @Override
+    public void execute(BlockGraph graph) {
+        graph.loadSlice(data, pos);
+    }
+
+    @Override
+    public Map<Vector3i, Update> splitByRegion(RegionForest forest) {
+        return Collections.singletonMap(RegionForest.regionPos(pos), this);
     }
 }
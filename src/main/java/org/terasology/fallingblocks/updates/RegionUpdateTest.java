@@ -0,0 +1,124 @@
+// Copyright 2021 The Terasology Foundation
+// SPDX-License-Identifier: Apache-2.0
+
+package org.terasology.fallingblocks.updates;
+
+import org.joml.Vector3i;
+import org.terasology.fallingblocks.Chain;
+import org.terasology.fallingblocks.ChunkData;
+import org.terasology.fallingblocks.RegionForest;
+import org.terasology.fallingblocks.Tree;
+import org.terasology.fallingblocks.TreeSnapshot;
+import org.terasology.fallingblocks.TreeUtils;
+import org.terasology.fallingblocks.node.Node;
+import org.terasology.fallingblocks.node.NodePath;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks of sequences of updates to the regions of a RegionForest that have gone wrong before, each run against a new forest in
+ * the same way as UpdateThread runs a batch of updates. They throw an exception if they fail.
+ */
+public final class RegionUpdateTest {
+    private RegionUpdateTest() {
+    }
+
+    /**
+     * Unload every chunk of a region and then load one again in the same batch, loading them slice by slice and in bulk. The
+     * region's root becomes a single UnloadedNode in between, as the region is only removed at the end of the batch.
+     */
+    public static void checkReloadInSameBatch() {
+        for (boolean bulk : new boolean[]{false, true}) {
+            RegionForest forest = new RegionForest();
+            Vector3i pos = new Vector3i(0, 0, 0);
+            Vector3i regionPos = RegionForest.regionPos(pos);
+            Tree tree = forest.getOrCreateRegion(regionPos);
+            load(pos, bulk).execute(tree);
+            new BulkUnloadUpdate(Collections.singletonList(pos)).execute(tree);
+            load(pos, bulk).execute(tree);
+            tree.rootNode.validate();
+            forest.removeIfUnloaded(regionPos);
+            TreeUtils.assrt(forest.getRegion(regionPos) == tree, "A loaded region was removed.");
+
+            // When the unload is the last update to the region in the batch, the region should still be removed.
+            new UnloadUpdate(pos).execute(tree);
+            forest.removeIfUnloaded(regionPos);
+            TreeUtils.assrt(forest.getRegion(regionPos) == null, "An unloaded region wasn't removed.");
+        }
+    }
+
+    /**
+     * Load the same slice twice in one bulk load, as UpdateThread.gatherChunkUpdates does when two loads of it are next to each
+     * other in the queue, into a region and into a tree with no root yet. Only the later load should be used.
+     */
+    public static void checkDuplicateLoadInSameBatch() {
+        Vector3i pos = new Vector3i(0, 0, 0);
+        Vector3i other = new Vector3i(Tree.CHUNK_NODE_SIZE, 0, 0);
+        RegionForest forest = new RegionForest();
+        Tree regionTree = forest.getOrCreateRegion(RegionForest.regionPos(pos));
+        for (Tree tree : new Tree[]{regionTree, new Tree()}) {
+            new BulkLoadUpdate(Arrays.asList(slice(pos, 1), slice(other, 1), slice(pos, 2))).execute(tree);
+            tree.rootNode.validate();
+            Node node = NodePath.find(tree.rootNode, new Vector3i(pos).sub(tree.rootNodePos), Tree.CHUNK_NODE_SIZE).getNode();
+            int blocks = 0;
+            for (Chain chain : node.getChains()) {
+                blocks += chain.getPositions(pos).size();
+            }
+            TreeUtils.assrt(blocks == 2 * Tree.CHUNK_NODE_SIZE * Tree.CHUNK_NODE_SIZE, "The earlier load was used.");
+        }
+    }
+
+    /**
+     * Load a slice into a new region and then save a snapshot in the same batch, through an UpdateThread. The snapshot should
+     * include the new region.
+     */
+    public static void checkSnapshotOfNewRegion() throws IOException, InterruptedException {
+        Vector3i pos = new Vector3i(0, 0, 0);
+        Path file = Files.createTempFile("fallingBlocks", ".snapshot");
+        try {
+            BlockingQueue<Update> in = new LinkedBlockingQueue<>();
+            SnapshotUpdate snapshot = new SnapshotUpdate(file);
+            // Both are queued before the thread starts, so they're executed as one batch.
+            in.add(slice(pos, 2));
+            in.add(snapshot);
+            UpdateThread thread = new UpdateThread(in, new LinkedBlockingQueue<>(), new Object());
+            thread.start();
+            try {
+                TreeUtils.assrt(snapshot.awaitFinished(10, TimeUnit.SECONDS), "The snapshot wasn't written.");
+            } finally {
+                thread.interrupt();
+            }
+            TreeSnapshot saved = TreeSnapshot.open(file);
+            TreeUtils.assrt(saved != null && saved.take(pos) != null, "The new region wasn't saved.");
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    private static Update load(Vector3i pos, boolean bulk) {
+        LoadUpdate load = slice(pos, Tree.CHUNK_NODE_SIZE / 4);
+        return bulk ? new BulkLoadUpdate(Collections.singletonList(load)) : load;
+    }
+
+    /**
+     * A slice with a floor of the given number of layers of solid blocks.
+     */
+    private static LoadUpdate slice(Vector3i pos, int layers) {
+        ChunkData data = new ChunkData();
+        for (int x = 0; x < Tree.CHUNK_NODE_SIZE; x++) {
+            for (int y = 0; y < layers; y++) {
+                for (int z = 0; z < Tree.CHUNK_NODE_SIZE; z++) {
+                    data.set(x, y, z);
+                }
+            }
+        }
+        return new LoadUpdate(data.compact(), pos);
+    }
+}
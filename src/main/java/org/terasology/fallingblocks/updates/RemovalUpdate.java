@@ -5,8 +5,14 @@ package org.terasology.fallingblocks.updates;
 
 import org.joml.Vector3i;
 import org.terasology.fallingblocks.Chain;
+import org.terasology.fallingblocks.RegionForest;
 import org.terasology.fallingblocks.Tree;
+import org.terasology.fallingblocks.TreeUtils;
+import org.terasology.fallingblocks.graph.BlockGraph;
+import org.terasology.fallingblocks.node.NodePath;
 
+import java.util.Collections;
+import java.util.Map;
 import java.util.Set;
 
 public class RemovalUpdate implements Update {
@@ -18,6 +24,20 @@ public class RemovalUpdate implements Update {
 
     @Override
     public Set<Chain> execute(Tree tree) {
+        NodePath path = tree.chunkDirectory.getPath(tree, pos);
+        if (path != null) {
+            return path.removeBlock(TreeUtils.modVector(pos, Tree.CHUNK_NODE_SIZE)).b;
+        }
         return tree.rootNode.removeBlock(new Vector3i(pos).sub(tree.rootNodePos)).b;
     }
+
+    @Override
+    public void execute(BlockGraph graph) {
+        graph.setBlock(pos, false);
+    }
+
+    @Override
+    public Map<Vector3i, Update> splitByRegion(RegionForest forest) {
+        return Collections.singletonMap(RegionForest.regionPos(pos), this);
+    }
 }
@@ -0,0 +1,95 @@
+// Copyright 2021 The Terasology Foundation
+// SPDX-License-Identifier: Apache-2.0
+
+package org.terasology.fallingblocks.updates;
+
+import org.joml.Vector3i;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.terasology.fallingblocks.Chain;
+import org.terasology.fallingblocks.RegionForest;
+import org.terasology.fallingblocks.Tree;
+import org.terasology.fallingblocks.TreeSnapshot;
+import org.terasology.fallingblocks.graph.BlockGraph;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Saving the loaded slices of the tree, or of every region of the forest, to a TreeSnapshot file. With a forest, each region is
+ * serialised by whichever thread updates it, and the file is written once they're all done.
+ */
+public class SnapshotUpdate implements Update {
+    private static final Logger logger = LoggerFactory.getLogger(SnapshotUpdate.class);
+
+    private final Path file;
+    private final Map<Vector3i, byte[]> slices = new HashMap<>();
+    // How many more trees need serialising before the file can be written.
+    private final AtomicInteger remaining = new AtomicInteger(1);
+    private final CountDownLatch finished = new CountDownLatch(1);
+
+    public SnapshotUpdate(Path file) {
+        this.file = file;
+    }
+
+    /**
+     * Wait until the file has been written, or writing it has failed.
+     *
+     * @return Whether that happened before the timeout
+     */
+    public boolean awaitFinished(long timeout, TimeUnit unit) throws InterruptedException {
+        return finished.await(timeout, unit);
+    }
+
+    @Override
+    public Set<Chain> execute(Tree tree) {
+        Map<Vector3i, byte[]> treeSlices = new HashMap<>();
+        TreeSnapshot.serialiseSlices(tree, treeSlices);
+        synchronized (slices) {
+            slices.putAll(treeSlices);
+        }
+        if (remaining.decrementAndGet() == 0) {
+            writeFile();
+        }
+        return Collections.emptySet();
+    }
+
+    @Override
+    public void execute(BlockGraph graph) {
+        // There's no octree to save.
+        finished.countDown();
+    }
+
+    @Override
+    public Map<Vector3i, Update> splitByRegion(RegionForest forest) {
+        Map<Vector3i, Update> result = new HashMap<>();
+        for (Tree tree : forest.getRegions()) {
+            result.put(tree.rootNodePos, this);
+        }
+        remaining.set(result.size());
+        if (result.isEmpty()) {
+            writeFile();
+        }
+        return result;
+    }
+
+    private void writeFile() {
+        try {
+            synchronized (slices) {
+                TreeSnapshot.write(file, slices);
+                logger.info("Saved {} FallingBlocks octree slices.", slices.size());
+            }
+        } catch (IOException e) {
+            logger.warn("Failed to save FallingBlocks snapshot {}.", file, e);
+        } finally {
+            finished.countDown();
+        }
+    }
+}
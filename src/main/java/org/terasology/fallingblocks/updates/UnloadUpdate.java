@@ -7,12 +7,15 @@ import org.joml.Vector3i;
 import org.terasology.fallingblocks.Chain;
 import org.terasology.fallingblocks.FullChain;
 import org.terasology.fallingblocks.Pair;
+import org.terasology.fallingblocks.RegionForest;
 import org.terasology.fallingblocks.Tree;
 import org.terasology.fallingblocks.TreeUtils;
+import org.terasology.fallingblocks.graph.BlockGraph;
 import org.terasology.fallingblocks.node.Node;
 
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
 
 public class UnloadUpdate implements Update {
@@ -24,9 +27,21 @@ public class UnloadUpdate implements Update {
 
     @Override
     public Set<Chain> execute(Tree tree) {
-        tree.rootNode = tree.rootNode.removeChunk(pos.sub(tree.rootNodePos), Tree.CHUNK_NODE_SIZE).a;
+        tree.rootNode = tree.rootNode.removeChunk(new Vector3i(pos).sub(tree.rootNodePos), Tree.CHUNK_NODE_SIZE).a;
+        tree.chunkDirectory.remove(pos);
+        shrinkRoot(tree);
+        return Collections.emptySet();
+    }
+
+    /**
+     * Shrink the root node of the tree for as long as only one of its octants is loaded, or remove it if none of it is.
+     */
+    static void shrinkRoot(Tree tree) {
+        if (tree.fixedRoot) {
+            return;
+        }
         Pair<Integer, Node> shrinking = tree.rootNode.canShrink();
-        if (shrinking.a >= 0) {
+        while (shrinking.a >= 0) {
             //logger.info("Shrinking root node to octant "+shrinking.a+", size "+shrinking.b.size+".");
             Set<Chain> oldChains = new HashSet<>(tree.rootNode.getChains());
             tree.rootNode = shrinking.b;
@@ -38,10 +53,21 @@ public class UnloadUpdate implements Update {
                 chain.inactivate(false); // It has to be done in this order so as to not also inactivate the child chains.
             }
             tree.rootNodePos.add(TreeUtils.octantVector(shrinking.a, tree.rootNode.size));
-        } else if (shrinking.a == -1) {
+            shrinking = tree.rootNode.canShrink();
+        }
+        if (shrinking.a == -1) {
             tree.rootNode = null;
             tree.rootNodePos = null;
         }
-        return Collections.emptySet();
+    }
+
+    @Override
+    public void execute(BlockGraph graph) {
+        graph.unloadSlice(pos);
+    }
+
+    @Override
+    public Map<Vector3i, Update> splitByRegion(RegionForest forest) {
+        return Collections.singletonMap(RegionForest.regionPos(pos), this);
     }
 }
@@ -3,9 +3,13 @@
 
 package org.terasology.fallingblocks.updates;
 
+import org.joml.Vector3i;
 import org.terasology.fallingblocks.Chain;
+import org.terasology.fallingblocks.RegionForest;
 import org.terasology.fallingblocks.Tree;
+import org.terasology.fallingblocks.graph.BlockGraph;
 
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -13,4 +17,16 @@ import java.util.Set;
  */
 public interface Update {
     Set<Chain> execute(Tree tree);
+
+    /**
+     * Apply the same change to the graph connectivity backend instead. The graph keeps track of which blocks may have been
+     * affected itself.
+     */
+    void execute(BlockGraph graph);
+
+    /**
+     * Divide this into the parts affecting each region of the forest, keyed by the positions of the regions (see
+     * RegionForest.regionPos). Each part is then executed on its region's tree.
+     */
+    Map<Vector3i, Update> splitByRegion(RegionForest forest);
 }
@@ -0,0 +1,94 @@
+// Copyright 2021 The Terasology Foundation
+// SPDX-License-Identifier: Apache-2.0
+
+package org.terasology.fallingblocks.updates;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides how much of its time the UpdateThread may spend working, based on how long the game's ticks are taking. While the
+ * ticks are comfortably within the target time, updates run back to back. Once they aren't, the thread pauses after each update
+ * for long enough to keep its share of a core to the configured limit, and less as the ticks get slower.
+ */
+public class UpdateScheduler {
+    // The share is never reduced below this, so that the updates always make some progress.
+    private static final double MIN_SHARE = 0.05;
+    // How much each new tick time counts towards the smoothed tick time.
+    private static final double SMOOTHING = 0.1;
+
+    private volatile double cpuShare = 0.5;
+    private volatile long targetTickTime = TimeUnit.MILLISECONDS.toNanos(20);
+    private volatile double smoothedTickTime;
+    // Pausing that is still owed for the updates so far, because it was cut short for a check for detached groups.
+    private long owedPause;
+
+    // Statistics, only for display.
+    private volatile double currentShare = 1;
+    private volatile long busyTime;
+    private volatile long pausedTime;
+
+    /**
+     * @param cpuShare The share of one core the updates may use while the game is running behind, between 0 and 1
+     * @param targetTickTime The tick time below which the game is considered to have time to spare
+     */
+    public void configure(double cpuShare, long targetTickTime, TimeUnit unit) {
+        this.cpuShare = Math.max(MIN_SHARE, Math.min(1, cpuShare));
+        this.targetTickTime = unit.toNanos(targetTickTime);
+    }
+
+    /**
+     * Called from the main thread once per tick.
+     *
+     * @param tickTime How long the main thread was busy since the previous tick, in nanoseconds
+     */
+    public void reportTick(long tickTime) {
+        // Only the main thread writes this, so the lack of atomicity doesn't matter.
+        smoothedTickTime += (tickTime - smoothedTickTime) * SMOOTHING;
+    }
+
+    /**
+     * Called by the UpdateThread after each update, to work out how long it needs to pause for its share. The pause itself
+     * happens in pause.
+     *
+     * @param workTime How long the update took, in nanoseconds
+     */
+    void afterUpdate(long workTime) {
+        double share = share();
+        currentShare = share;
+        busyTime += workTime;
+        if (share < 1) {
+            owedPause += (long) (workTime * (1 - share) / share);
+        } else {
+            owedPause = 0;
+        }
+    }
+
+    /**
+     * Pause for as long as is owed for the updates so far, but no longer than the given time, so that a check for detached groups
+     * which is due isn't delayed. Any pause left over is taken next time.
+     *
+     * @param maxPause The longest to pause for, in nanoseconds
+     */
+    void pause(long maxPause) throws InterruptedException {
+        long pause = Math.max(0, Math.min(owedPause, maxPause));
+        if (pause > 0) {
+            owedPause -= pause;
+            pausedTime += pause;
+            TimeUnit.NANOSECONDS.sleep(pause);
+        }
+    }
+
+    private double share() {
+        double tickTime = smoothedTickTime;
+        if (tickTime <= targetTickTime) {
+            return 1;
+        }
+        return Math.max(MIN_SHARE, cpuShare * targetTickTime / tickTime);
+    }
+
+    public String getStatus() {
+        return String.format("Tick busy time %.1fms (target %dms), CPU share %.0f%% (limit %.0f%%), busy %dms, paused %dms",
+                smoothedTickTime / 1e6, TimeUnit.NANOSECONDS.toMillis(targetTickTime), currentShare * 100, cpuShare * 100,
+                TimeUnit.NANOSECONDS.toMillis(busyTime), TimeUnit.NANOSECONDS.toMillis(pausedTime));
+    }
+}
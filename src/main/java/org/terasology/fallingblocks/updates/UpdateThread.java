@@ -5,57 +5,160 @@ package org.terasology.fallingblocks.updates;
 
 import org.joml.Vector3i;
 import org.terasology.fallingblocks.Chain;
+import org.terasology.fallingblocks.RegionForest;
 import org.terasology.fallingblocks.Tree;
+import org.terasology.fallingblocks.graph.BlockGraph;
 
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class UpdateThread extends Thread {
+    // How many of the updates waiting in the queue to look at for chunks to start building in advance.
+    private static final int PREPARE_LOOKAHEAD = 64;
+    // The most chunk slices to load or unload in one update.
+    private static final int MAX_BULK_SLICES = 1024;
+
     private final BlockingQueue<Update> in;
     private final BlockingQueue<Set<Vector3i>> out;
     private final Object updatingFinishedMonitor;
 
+    // Exactly one of these is used, depending on which connectivity backend was chosen.
     private Tree tree;
-    private long previousUpdatedTime;
+    private BlockGraph graph;
+    private RegionForest forest;
+    // The threads updating the regions of the forest, if it's used with any.
+    private ExecutorService regionWorkers;
+    // The threads building the independent parts of newly loaded chunks, if there are any.
+    private ForkJoinPool buildPool;
     private Set<Chain> updatedChains;
+    private final UpdateScheduler scheduler = new UpdateScheduler();
+
+    private volatile DetectionPolicy detectionPolicy = DetectionPolicy.QUIESCENCE;
+    private volatile long detectionDelay = TimeUnit.MILLISECONDS.toNanos(20);
+    private volatile long maxDetectionDelay = TimeUnit.MILLISECONDS.toNanos(100);
+    // Whether there have been any updates since detached groups were last checked for, and when the first and last of them were.
+    private boolean pending;
+    private long firstPendingTime;
+    private long lastPendingTime;
 
     public UpdateThread(BlockingQueue<Update> in, BlockingQueue<Set<Vector3i>> out, Object updatingFinishedMonitor) {
+        this(in, out, updatingFinishedMonitor, false, true, 0);
+    }
+
+    /**
+     * @param useGraph   Whether to track connectivity with BlockGraph rather than the octree
+     * @param useRegions Whether to split the octree into fixed-size regions (see RegionForest), rather than having a single octree
+     *                   with a root node that grows to cover all the loaded chunks, however far apart they are
+     * @param workers    If positive, this many threads update different regions in parallel. Otherwise, the regions are updated
+     *                   one after another on this thread.
+     */
+    public UpdateThread(BlockingQueue<Update> in, BlockingQueue<Set<Vector3i>> out, Object updatingFinishedMonitor,
+                        boolean useGraph, boolean useRegions, int workers) {
         this.in = in;
         this.out = out;
         this.updatingFinishedMonitor = updatingFinishedMonitor;
-        tree = new Tree();
+        if (useGraph) {
+            graph = new BlockGraph();
+        } else if (useRegions) {
+            forest = new RegionForest();
+            if (workers > 0) {
+                regionWorkers = Executors.newFixedThreadPool(workers, runnable -> {
+                    Thread thread = new Thread(runnable, "FallingBlocks region worker");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            }
+        } else {
+            tree = new Tree();
+        }
         updatedChains = new HashSet<>();
-        setPriority(Thread.MIN_PRIORITY);
+        // The scheduler limits how much time this takes when the game is busy, so it doesn't need a low priority as well.
+        setPriority(Thread.NORM_PRIORITY);
+    }
+
+    public UpdateScheduler getScheduler() {
+        return scheduler;
+    }
+
+    /**
+     * Build the parts of newly loaded chunks that don't depend on the rest of the tree on a pool with the given number of
+     * threads, ahead of time and in parallel with each other. Only inserting them into the tree happens on the update thread.
+     * This must be called before the thread is started.
+     */
+    public void setBuildParallelism(int parallelism) {
+        if (parallelism > 0 && graph == null) {
+            buildPool = new ForkJoinPool(parallelism);
+        }
+    }
+
+    /**
+     * Choose when to check for detached block groups. The maximum delay is only used by the QUIESCENCE policy.
+     */
+    public void setDetectionPolicy(DetectionPolicy policy, long delay, long maxDelay, TimeUnit unit) {
+        detectionPolicy = policy;
+        detectionDelay = unit.toNanos(delay);
+        maxDetectionDelay = unit.toNanos(maxDelay);
     }
 
     @Override
     public void run() {
-        previousUpdatedTime = System.currentTimeMillis();
         try {
             while (!isInterrupted()) {
-                Update update = in.poll(100, TimeUnit.MILLISECONDS);
-                long startTime = System.currentTimeMillis();
-                if (update != null) {
-                    updatedChains.addAll(update.execute(tree));
-                    long finishedTime = System.currentTimeMillis();
-                    if (finishedTime > startTime - 10) {
-                        sleep(finishedTime - startTime);
-                    }
+                if (pending && System.nanoTime() - deadline() >= 0) {
+                    pending = false;
+                    detect();
                 }
-                if (startTime > previousUpdatedTime + 90 && in.isEmpty()) {
-                    previousUpdatedTime = startTime;
-                    for (Chain chain : updatedChains) {
-                        Chain currentChain = chain;
-                        while (currentChain.parent != null) { // Just in case the root node has expanded since this chain was added to the set.
-                            currentChain = currentChain.parent;
-                        }
-                        if (currentChain.isActive() && !currentChain.supported && !currentChain.isTouchingAnySide()) {
-                            out.add(currentChain.getPositions(tree.rootNodePos));
+                // The pause the scheduler requires after the updates so far stops when the next check is due, so that it happens
+                // on time. The rest of the pause is taken after that.
+                scheduler.pause(pending ? deadline() - System.nanoTime() : Long.MAX_VALUE);
+                // With nothing to check, there's nothing to do until the next update arrives. Otherwise wait for it only until
+                // the check is due.
+                Update update;
+                if (pending) {
+                    long wait = deadline() - System.nanoTime();
+                    update = wait > 0 ? in.poll(wait, TimeUnit.NANOSECONDS) : null;
+                } else {
+                    update = in.take();
+                }
+                if (update != null && graph == null) {
+                    update = gatherChunkUpdates(update);
+                }
+                if (update != null) {
+                    long startTime = System.nanoTime();
+                    long workTime;
+                    if (forest != null) {
+                        workTime = executeInRegions(update);
+                    } else {
+                        if (graph != null) {
+                            update.execute(graph);
+                        } else {
+                            if (buildPool != null) {
+                                prepareLoads(update);
+                            }
+                            updatedChains.addAll(update.execute(tree));
                         }
+                        workTime = System.nanoTime() - startTime;
+                    }
+                    long finishedTime = System.nanoTime();
+                    if (!pending) {
+                        pending = true;
+                        firstPendingTime = finishedTime;
                     }
-                    updatedChains.clear();
+                    lastPendingTime = finishedTime;
+                    scheduler.afterUpdate(workTime);
                 }
                 // TODO: I can't find convenient monitors separate from locks,
                 //  and Java requires that the lock be acquired before the monitor is usable.
@@ -67,6 +170,173 @@ public class UpdateThread extends Thread {
         } catch (Throwable e) {
             e.printStackTrace();
             throw e;
+        } finally {
+            if (regionWorkers != null) {
+                regionWorkers.shutdownNow();
+            }
+            if (buildPool != null) {
+                buildPool.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * Start building the given update and the next few in the queue in advance, if they're loading chunks.
+     */
+    private void prepareLoads(Update update) {
+        prepare(update, tree);
+        int lookahead = 0;
+        for (Update waiting : in) {
+            prepare(waiting, tree);
+            if (++lookahead >= PREPARE_LOOKAHEAD) {
+                break;
+            }
+        }
+    }
+
+    private void prepare(Update update, Tree target) {
+        if (update instanceof LoadUpdate) {
+            ((LoadUpdate) update).prepare(buildPool, target);
+        } else if (update instanceof BulkLoadUpdate) {
+            ((BulkLoadUpdate) update).prepare(buildPool, target);
+        }
+    }
+
+    /**
+     * If the update loads or unloads chunks, combine it with any more of the same straight after it in the queue, so that they
+     * can all be done together. When many chunks load at once, this builds most of the new part of the tree from the bottom up,
+     * and when many unload at once, it replaces the largest nodes it can with UnloadedNodes directly.
+     */
+    private Update gatherChunkUpdates(Update update) {
+        if (isLoad(update) && isLoad(in.peek())) {
+            List<LoadUpdate> slices = new ArrayList<>();
+            addSlices(update, slices);
+            while (slices.size() < MAX_BULK_SLICES && isLoad(in.peek())) {
+                addSlices(in.poll(), slices);
+            }
+            return new BulkLoadUpdate(slices);
+        } else if (isUnload(update) && isUnload(in.peek())) {
+            List<Vector3i> positions = new ArrayList<>();
+            addPositions(update, positions);
+            while (positions.size() < MAX_BULK_SLICES && isUnload(in.peek())) {
+                addPositions(in.poll(), positions);
+            }
+            return new BulkUnloadUpdate(positions);
+        } else {
+            return update;
+        }
+    }
+
+    private static boolean isLoad(Update update) {
+        return update instanceof LoadUpdate || update instanceof BulkLoadUpdate;
+    }
+
+    private static void addSlices(Update update, List<LoadUpdate> slices) {
+        if (update instanceof LoadUpdate) {
+            slices.add((LoadUpdate) update);
+        } else {
+            slices.addAll(((BulkLoadUpdate) update).slices);
+        }
+    }
+
+    private static boolean isUnload(Update update) {
+        return update instanceof UnloadUpdate || update instanceof BulkUnloadUpdate;
+    }
+
+    private static void addPositions(Update update, List<Vector3i> positions) {
+        if (update instanceof UnloadUpdate) {
+            positions.add(((UnloadUpdate) update).pos);
+        } else {
+            positions.addAll(((BulkUnloadUpdate) update).positions);
+        }
+    }
+
+    /**
+     * Execute the given update and any others already waiting, divided up by region, with all the parts for each region run in
+     * order on one of the workers, or on this thread if there aren't any.
+     *
+     * @return The total time the workers spent on it, in nanoseconds
+     */
+    private long executeInRegions(Update first) throws InterruptedException {
+        List<Update> batch = new ArrayList<>();
+        batch.add(first);
+        in.drainTo(batch);
+        Map<Vector3i, List<Update>> parts = new HashMap<>();
+        for (Update update : batch) {
+            for (Map.Entry<Vector3i, Update> part : update.splitByRegion(forest).entrySet()) {
+                // The region has to exist straight away, so that later updates in the batch which apply to every region (e.g.
+                // SnapshotUpdate) include it.
+                forest.getOrCreateRegion(part.getKey());
+                parts.computeIfAbsent(part.getKey(), k -> new ArrayList<>()).add(part.getValue());
+            }
+        }
+        AtomicLong workTime = new AtomicLong();
+        List<Callable<Set<Chain>>> tasks = new ArrayList<>();
+        for (Map.Entry<Vector3i, List<Update>> entry : parts.entrySet()) {
+            Tree regionTree = forest.getOrCreateRegion(entry.getKey());
+            List<Update> updates = entry.getValue();
+            if (buildPool != null) {
+                for (Update update : updates) {
+                    prepare(update, regionTree);
+                }
+            }
+            if (regionWorkers == null) {
+                updatedChains.addAll(executeInRegion(regionTree, updates, workTime));
+            } else {
+                tasks.add(() -> executeInRegion(regionTree, updates, workTime));
+            }
+        }
+        if (regionWorkers != null) {
+            try {
+                for (Future<Set<Chain>> result : regionWorkers.invokeAll(tasks)) {
+                    updatedChains.addAll(result.get());
+                }
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            }
+        }
+        for (Vector3i regionPos : parts.keySet()) {
+            forest.removeIfUnloaded(regionPos);
+            forest.addNeighbourRootChains(regionPos, updatedChains);
+        }
+        return workTime.get();
+    }
+
+    private static Set<Chain> executeInRegion(Tree regionTree, List<Update> updates, AtomicLong workTime) {
+        long startTime = System.nanoTime();
+        Set<Chain> result = new HashSet<>();
+        for (Update update : updates) {
+            result.addAll(update.execute(regionTree));
+        }
+        workTime.addAndGet(System.nanoTime() - startTime);
+        return result;
+    }
+
+    private long deadline() {
+        return detectionPolicy.deadline(firstPendingTime, lastPendingTime, detectionDelay, maxDetectionDelay);
+    }
+
+    /**
+     * Send all the block groups which may have been detached by the updates since the last check to the main thread.
+     */
+    private void detect() {
+        if (graph != null) {
+            out.addAll(graph.takeDetached());
+        } else if (forest != null) {
+            out.addAll(forest.findDetached(updatedChains));
+            forest.compactIfSparse();
+        } else {
+            for (Chain chain : updatedChains) {
+                Chain currentChain = chain;
+                while (currentChain.parent != null) { // Just in case the root node has expanded since this chain was added to the set.
+                    currentChain = currentChain.parent;
+                }
+                if (currentChain.isActive() && !currentChain.supported && !currentChain.isTouchingAnySide()) {
+                    out.add(currentChain.getPositions(tree.rootNodePos));
+                }
+            }
+            tree.compactIfSparse();
         }
+        updatedChains.clear();
     }
 }
@@ -3,10 +3,15 @@
 
 package org.terasology.fallingblocks.updates;
 
+import org.joml.Vector3i;
 import org.terasology.fallingblocks.Chain;
+import org.terasology.fallingblocks.RegionForest;
 import org.terasology.fallingblocks.Tree;
+import org.terasology.fallingblocks.graph.BlockGraph;
 
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Set;
 
 public class ValidateUpdate implements Update {
@@ -18,4 +23,18 @@ public class ValidateUpdate implements Update {
         tree.rootNode.validate();
         return Collections.emptySet();
     }
+
+    @Override
+    public void execute(BlockGraph graph) {
+        graph.validate();
+    }
+
+    @Override
+    public Map<Vector3i, Update> splitByRegion(RegionForest forest) {
+        Map<Vector3i, Update> result = new HashMap<>();
+        for (Tree tree : forest.getRegions()) {
+            result.put(tree.rootNodePos, this);
+        }
+        return result;
+    }
 }